@@ -0,0 +1,82 @@
+package io.orcana;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+
+import timber.log.Timber;
+
+/*
+ * Table of ADMIN actions. Each action is registered once with a handler and whether it is
+ * addressed to a single device, in which case the message's identity has to match the local
+ * participant. The local identity and SID are cached when the room connects, so checking a
+ * message is a map lookup and one string compare.
+ *
+ * The parser asks accepts() as soon as it has read the action and identity, and drops
+ * commands meant for other devices without reading the rest of the message.
+ */
+final class AdminCommands {
+    interface Command {
+        void execute(AdminMessage message);
+    }
+
+    private static final class Entry {
+        final boolean addressed;
+        final Command command;
+
+        Entry(boolean addressed, Command command) {
+            this.addressed = addressed;
+            this.command = command;
+        }
+    }
+
+    // Written while DataTrackLayer is constructed, read only afterwards
+    private final HashMap<String, Entry> commands = new HashMap<>();
+
+    private volatile String localIdentity;
+    private volatile String localSid;
+
+    // For commands that only the device with the message's identity should execute
+    void registerAddressed(String action, Command command) {
+        commands.put(action, new Entry(true, command));
+    }
+
+    // For commands every device executes
+    void registerBroadcast(String action, Command command) {
+        commands.put(action, new Entry(false, command));
+    }
+
+    void setLocalParticipant(@Nullable String identity, @Nullable String sid) {
+        localIdentity = identity;
+        localSid = sid;
+    }
+
+    @Nullable
+    String getLocalSid() {
+        return localSid;
+    }
+
+    boolean accepts(String action, @Nullable String identity) {
+        Entry entry = commands.get(action);
+        return entry != null && (!entry.addressed || isLocalIdentity(identity));
+    }
+
+    // Returns whether the command was for this device and has been executed
+    boolean execute(AdminMessage message) {
+        Entry entry = commands.get(message.action);
+        if (entry == null) {
+            Timber.d("Unknown admin action %s", message.action);
+            return false;
+        }
+        if (entry.addressed && !isLocalIdentity(message.identity)) {
+            return false;
+        }
+        entry.command.execute(message);
+        return true;
+    }
+
+    private boolean isLocalIdentity(@Nullable String identity) {
+        String local = localIdentity;
+        return local != null && local.equals(identity);
+    }
+}
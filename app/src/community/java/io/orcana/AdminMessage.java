@@ -0,0 +1,16 @@
+package io.orcana;
+
+// Reusable holder for the top level fields of an ADMIN message.
+final class AdminMessage {
+    String action;
+    String identity;
+    String caseCreatorSid;
+    String pinnedParticipantSid;
+
+    void reset() {
+        action = null;
+        identity = null;
+        caseCreatorSid = null;
+        pinnedParticipantSid = null;
+    }
+}
@@ -0,0 +1,276 @@
+package io.orcana;
+
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Sits between the data track message thread and the AnnotationView. Annotation messages are
+ * queued in arrival order, but consecutive UPDATE_ANNOTATIONs for the same shape collapse into
+ * the latest one, and consecutive APPEND_POINTS for the same stroke into a single append of all
+ * their points. Once per display frame the queue is drained on the writer thread into the
+ * AnnotationScene back buffer, which is then published with a single invalidate, so a drag that
+ * sends dozens of updates per second costs one redraw per frame and no work on the UI thread.
+ *
+ * Shapes stay live until the scene is published SETTLE_MILLIS after their last change, so after
+ * each frame a settle is posted on the writer thread for when the next one is due. A burst
+ * followed by silence still ends up in the cached static layer.
+ *
+ * Collapsed changes are counted in DataTrackMetrics, and every message that made it into a frame
+ * records the time from its dispatch until that frame was published.
+ */
+final class AnnotationCoalescer implements Choreographer.FrameCallback {
+    private static final int OP_NONE = 0;
+    private static final int OP_ADD = 1;
+    private static final int OP_UPDATE = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int OP_RESTART = 4;
+    private static final int OP_APPEND = 5;
+
+    private static final class PendingOp {
+        int op;
+        // Message type the change is counted under, null for the shapes of a snapshot
+        String type;
+        long enqueuedNanos;
+        final AnnotationRecord annotation = new AnnotationRecord();
+        float roomWidth;
+        float roomHeight;
+    }
+
+    private final AnnotationView annotationView;
+    private final Choreographer choreographer;
+    private final Handler writerHandler;
+    private final DataTrackMetrics metrics;
+    private final Runnable drain = this::drain;
+    private final Runnable settle = this::settle;
+
+    // Guarded by lock
+    private final Object lock = new Object();
+    private ArrayList<PendingOp> pending = new ArrayList<>();
+    private final HashMap<String, PendingOp> pendingUpdates = new HashMap<>();
+    private final HashMap<String, PendingOp> pendingAppends = new HashMap<>();
+    private final ArrayDeque<PendingOp> pool = new ArrayDeque<>();
+    private boolean frameScheduled;
+    private long coalescedCount;
+
+    // Only touched from the writer thread
+    private ArrayList<PendingOp> applying = new ArrayList<>();
+
+    // Must be created on the UI thread so frame callbacks follow the display
+    AnnotationCoalescer(AnnotationView annotationView, Handler writerHandler, DataTrackMetrics metrics) {
+        this.annotationView = annotationView;
+        this.choreographer = Choreographer.getInstance();
+        this.writerHandler = writerHandler;
+        this.metrics = metrics;
+    }
+
+    void add(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+        synchronized (lock) {
+            // Later updates must not be folded into an update queued before this add
+            pendingUpdates.remove(annotation.id);
+            pendingAppends.remove(annotation.id);
+            enqueue(OP_ADD, DataTrackMessageParser.ADD_ANNOTATION, annotation, roomWidth, roomHeight);
+        }
+    }
+
+    void update(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+        synchronized (lock) {
+            PendingOp op = pendingUpdates.get(annotation.id);
+            if (op != null) {
+                op.annotation.set(annotation);
+                op.roomWidth = roomWidth;
+                op.roomHeight = roomHeight;
+                coalescedCount++;
+                metrics.coalesced(DataTrackMessageParser.UPDATE_ANNOTATION);
+                return;
+            }
+            // Later points must not be appended ahead of this update
+            pendingAppends.remove(annotation.id);
+            pendingUpdates.put(annotation.id, enqueue(OP_UPDATE, DataTrackMessageParser.UPDATE_ANNOTATION,
+                    annotation, roomWidth, roomHeight));
+        }
+    }
+
+    void append(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+        synchronized (lock) {
+            // Later updates must not be folded into an update queued before these points
+            pendingUpdates.remove(annotation.id);
+            PendingOp op = pendingAppends.get(annotation.id);
+            if (op != null && op.roomWidth == roomWidth && op.roomHeight == roomHeight) {
+                op.annotation.appendPoints(annotation);
+                coalescedCount++;
+                metrics.coalesced(DataTrackMessageParser.APPEND_POINTS);
+                return;
+            }
+            pendingAppends.put(annotation.id, enqueue(OP_APPEND, DataTrackMessageParser.APPEND_POINTS,
+                    annotation, roomWidth, roomHeight));
+        }
+    }
+
+    void remove(String id) {
+        synchronized (lock) {
+            PendingOp op = pendingUpdates.remove(id);
+            if (op != null) {
+                // The shape is going away, no point in applying its last update
+                op.op = OP_NONE;
+                coalescedCount++;
+                metrics.coalesced(op.type);
+            }
+            op = pendingAppends.remove(id);
+            if (op != null) {
+                op.op = OP_NONE;
+                coalescedCount++;
+                metrics.coalesced(op.type);
+            }
+            enqueue(OP_REMOVE, DataTrackMessageParser.REMOVE_ANNOTATION, null, 0f, 0f).annotation.id = id;
+        }
+    }
+
+    void restart() {
+        restart(DataTrackMessageParser.RESTART_ANNOTATION);
+    }
+
+    private void restart(String type) {
+        synchronized (lock) {
+            // Everything queued so far would be cleared anyway
+            for (int i = 0, size = pending.size(); i < size; i++) {
+                PendingOp op = pending.get(i);
+                if (op.op != OP_NONE && op.type != null) {
+                    coalescedCount++;
+                    metrics.coalesced(op.type);
+                }
+            }
+            pool.addAll(pending);
+            pending.clear();
+            pendingUpdates.clear();
+            pendingAppends.clear();
+            enqueue(OP_RESTART, type, null, 0f, 0f);
+        }
+    }
+
+    // Clears the scene and adds every annotation, all within the same frame
+    void snapshot(List<AnnotationRecord> annotations, float roomWidth, float roomHeight) {
+        synchronized (lock) {
+            restart(DataTrackMessageParser.ANNOTATION_SNAPSHOT);
+            for (int i = 0, size = annotations.size(); i < size; i++) {
+                enqueue(OP_ADD, null, annotations.get(i), roomWidth, roomHeight);
+            }
+        }
+    }
+
+    long getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+
+    void release() {
+        choreographer.removeFrameCallback(this);
+        writerHandler.removeCallbacks(drain);
+        writerHandler.removeCallbacks(settle);
+        synchronized (lock) {
+            pool.addAll(pending);
+            pending.clear();
+            pendingUpdates.clear();
+            pendingAppends.clear();
+            frameScheduled = false;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        writerHandler.post(drain);
+    }
+
+    private void drain() {
+        synchronized (lock) {
+            ArrayList<PendingOp> swap = applying;
+            applying = pending;
+            pending = swap;
+            pendingUpdates.clear();
+            pendingAppends.clear();
+            frameScheduled = false;
+        }
+
+        for (int i = 0, size = applying.size(); i < size; i++) {
+            PendingOp op = applying.get(i);
+            switch (op.op) {
+                case OP_ADD:
+                    annotationView.addShape(op.annotation, op.roomWidth, op.roomHeight);
+                    break;
+                case OP_UPDATE:
+                    annotationView.updateShape(op.annotation, op.roomWidth, op.roomHeight);
+                    break;
+                case OP_APPEND:
+                    annotationView.appendPoints(op.annotation, op.roomWidth, op.roomHeight);
+                    break;
+                case OP_REMOVE:
+                    annotationView.removeShape(op.annotation.id);
+                    break;
+                case OP_RESTART:
+                    annotationView.removeAllShapes();
+                    break;
+            }
+        }
+
+        annotationView.publishShapes();
+        scheduleSettle();
+
+        long published = System.nanoTime();
+        for (int i = 0, size = applying.size(); i < size; i++) {
+            PendingOp op = applying.get(i);
+            if (op.op != OP_NONE && op.type != null) {
+                metrics.invalidate(op.type, published - op.enqueuedNanos);
+            }
+        }
+
+        synchronized (lock) {
+            pool.addAll(applying);
+        }
+        applying.clear();
+    }
+
+    private void settle() {
+        annotationView.publishShapes();
+        scheduleSettle();
+    }
+
+    // Writer thread, replaces any settle already posted
+    private void scheduleSettle() {
+        writerHandler.removeCallbacks(settle);
+        long delay = annotationView.settleDelayMillis();
+        if (delay >= 0) {
+            writerHandler.postDelayed(settle, delay);
+        }
+    }
+
+    // Must hold lock
+    private PendingOp enqueue(int type, String messageType, AnnotationRecord annotation,
+                              float roomWidth, float roomHeight) {
+        PendingOp op = pool.poll();
+        if (op == null) {
+            op = new PendingOp();
+        }
+        op.op = type;
+        op.type = messageType;
+        op.enqueuedNanos = System.nanoTime();
+        if (annotation != null) {
+            op.annotation.set(annotation);
+        } else {
+            op.annotation.reset();
+        }
+        op.roomWidth = roomWidth;
+        op.roomHeight = roomHeight;
+        pending.add(op);
+
+        if (!frameScheduled) {
+            frameScheduled = true;
+            choreographer.postFrameCallback(this);
+        }
+        return op;
+    }
+}
@@ -0,0 +1,284 @@
+package io.orcana;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import timber.log.Timber;
+
+/*
+ * Compact binary wire format for annotation messages received on the RemoteDataTrack
+ * ByteBuffer path. All multi-byte values are little-endian so the console can write them
+ * straight from a DataView/Float32Array.
+ *
+ *   byte     magic     0xA7 (never the first byte of a UTF-8 JSON message)
+ *   byte     version   0x01, or 0x02 for frames carrying a scene version. 0x03 is a
+ *                      compressed envelope, see DataTrackCompression.
+ *   byte     opcode    ADD, UPDATE, APPEND_POINTS, REMOVE, RESTART_ANNOTATION or
+ *                      SNAPSHOT (0x02 only)
+ *   varint   scene version (0x02 only)
+ *
+ * In 0x02 frames every annotation id of ADD, UPDATE, APPEND_POINTS, REMOVE and SNAPSHOT is
+ * followed by a varint per-shape sequence number (see AnnotationSequencer).
+ *
+ *   ADD / UPDATE
+ *     varint   id
+ *     float32  room width, room height
+ *     byte     category  circle, rect, line, text or stroke
+ *     int32    color (ARGB)
+ *     circle   float32 cx, cy, r
+ *     rect     float32 x, y, width, height; byte hasTransform; [float32 tx, ty]
+ *     line     float32 x1, y1, x2, y2
+ *     text     float32 x, y; varint fontSize; varint byteLength; UTF-8 bytes
+ *     stroke   varint count; count x float32 x, y
+ *
+ *   APPEND_POINTS
+ *     varint   id
+ *     float32  room width, room height
+ *     varint   count; count x float32 x, y
+ *
+ *   REMOVE
+ *     varint   id
+ *
+ *   SNAPSHOT
+ *     float32  room width, room height
+ *     varint   count
+ *     count x  varint id; byte category; int32 color; category fields as for ADD
+ */
+final class AnnotationCodec {
+    static final byte MAGIC = (byte) 0xA7;
+    static final byte VERSION = 0x01;
+    static final byte VERSION_SCENE = 0x02;
+
+    static final byte OP_ADD_ANNOTATION = 0x01;
+    static final byte OP_UPDATE_ANNOTATION = 0x02;
+    static final byte OP_REMOVE_ANNOTATION = 0x03;
+    static final byte OP_RESTART_ANNOTATION = 0x04;
+    static final byte OP_SNAPSHOT = 0x05;
+    static final byte OP_APPEND_POINTS = 0x06;
+
+    private final AnnotationRecord record = new AnnotationRecord();
+    private final ArrayList<AnnotationRecord> snapshot = new ArrayList<>();
+    private final ArrayList<AnnotationRecord> snapshotPool = new ArrayList<>();
+    private float roomWidth;
+    private float roomHeight;
+    private byte[] textScratch = new byte[64];
+
+    static boolean isBinaryFrame(ByteBuffer buffer) {
+        return buffer.remaining() >= 3 && buffer.get(buffer.position()) == MAGIC;
+    }
+
+    /*
+     * Decodes a single binary frame and hands it to the message handler. Returns false,
+     * without consuming the buffer, when the buffer does not hold a binary frame so the
+     * caller can fall back to the JSON path.
+     */
+    boolean decode(ByteBuffer buffer, DataTrackMessageHandler handler) {
+        if (!isBinaryFrame(buffer)) {
+            return false;
+        }
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.get(); // magic
+        byte version = buffer.get();
+        if (version != VERSION && version != VERSION_SCENE) {
+            Timber.w("Unsupported annotation frame version %d", version);
+            return true;
+        }
+
+        try {
+            byte opcode = buffer.get();
+            long sceneVersion = -1;
+            if (version == VERSION_SCENE) {
+                sceneVersion = readVarInt(buffer) & 0xFFFFFFFFL;
+                if (opcode == OP_SNAPSHOT) {
+                    readSnapshot(buffer);
+                    handler.annotationSnapshot(sceneVersion, snapshot, roomWidth, roomHeight);
+                    return true;
+                }
+                if (!handler.acceptsAnnotationVersion(sceneVersion)) {
+                    Timber.d("Dropping stale annotation frame version %d", sceneVersion);
+                    return true;
+                }
+            }
+
+            switch (opcode) {
+                case OP_ADD_ANNOTATION:
+                    readAnnotation(buffer, version == VERSION_SCENE);
+                    handler.addAnnotation(record, roomWidth, roomHeight);
+                    break;
+                case OP_UPDATE_ANNOTATION:
+                    readAnnotation(buffer, version == VERSION_SCENE);
+                    handler.updateAnnotation(record, roomWidth, roomHeight);
+                    break;
+                case OP_APPEND_POINTS:
+                    record.reset();
+                    record.id = Integer.toString(readVarInt(buffer));
+                    if (version == VERSION_SCENE) {
+                        record.seq = readVarInt(buffer) & 0xFFFFFFFFL;
+                    }
+                    readRoomDimensions(buffer);
+                    readPoints(buffer, record);
+                    handler.appendPoints(record, roomWidth, roomHeight);
+                    break;
+                case OP_REMOVE_ANNOTATION:
+                    String id = Integer.toString(readVarInt(buffer));
+                    long seq = version == VERSION_SCENE ? readVarInt(buffer) & 0xFFFFFFFFL : -1;
+                    handler.removeAnnotation(id, seq);
+                    break;
+                case OP_RESTART_ANNOTATION:
+                    handler.restartAnnotation();
+                    break;
+                default:
+                    Timber.w("Unknown annotation opcode %d", opcode);
+                    break;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Timber.e(e, "Malformed annotation frame");
+        }
+        return true;
+    }
+
+    private void readAnnotation(ByteBuffer buffer, boolean hasSequence) {
+        record.reset();
+        record.id = Integer.toString(readVarInt(buffer));
+        if (hasSequence) {
+            record.seq = readVarInt(buffer) & 0xFFFFFFFFL;
+        }
+        readRoomDimensions(buffer);
+        readShape(buffer, record);
+    }
+
+    private void readSnapshot(ByteBuffer buffer) {
+        snapshot.clear();
+        roomWidth = buffer.getFloat();
+        roomHeight = buffer.getFloat();
+        int count = readVarInt(buffer);
+        // Every entry holds at least an id, a sequence number, a category and a color
+        if (count < 0 || count > buffer.remaining() / 7) {
+            throw new BufferUnderflowException();
+        }
+        if (count > 0) {
+            checkRoomDimensions();
+        }
+        for (int i = 0; i < count; i++) {
+            if (i == snapshotPool.size()) {
+                snapshotPool.add(new AnnotationRecord());
+            }
+            AnnotationRecord record = snapshotPool.get(i);
+            record.reset();
+            record.id = Integer.toString(readVarInt(buffer));
+            record.seq = readVarInt(buffer) & 0xFFFFFFFFL;
+            readShape(buffer, record);
+            snapshot.add(record);
+        }
+    }
+
+    private void readRoomDimensions(ByteBuffer buffer) {
+        roomWidth = buffer.getFloat();
+        roomHeight = buffer.getFloat();
+        checkRoomDimensions();
+    }
+
+    // Shapes are normalized by the room, so a frame without a usable room is dropped
+    private void checkRoomDimensions() {
+        if (!(roomWidth > 0f) || !(roomHeight > 0f)) {
+            throw new IllegalArgumentException("Invalid room dimensions " + roomWidth + "x" + roomHeight);
+        }
+    }
+
+    // Category, color and the category's fields
+    private void readShape(ByteBuffer buffer, AnnotationRecord record) {
+        record.category = buffer.get();
+        record.color = buffer.getInt();
+
+        switch (record.category) {
+            case AnnotationRecord.CATEGORY_CIRCLE:
+                record.cx = buffer.getFloat();
+                record.cy = buffer.getFloat();
+                record.r = buffer.getFloat();
+                break;
+            case AnnotationRecord.CATEGORY_RECT:
+                record.x = buffer.getFloat();
+                record.y = buffer.getFloat();
+                record.width = buffer.getFloat();
+                record.height = buffer.getFloat();
+                record.hasTransform = buffer.get() != 0;
+                if (record.hasTransform) {
+                    record.transformX = buffer.getFloat();
+                    record.transformY = buffer.getFloat();
+                }
+                break;
+            case AnnotationRecord.CATEGORY_LINE:
+                record.x1 = buffer.getFloat();
+                record.y1 = buffer.getFloat();
+                record.x2 = buffer.getFloat();
+                record.y2 = buffer.getFloat();
+                break;
+            case AnnotationRecord.CATEGORY_TEXT:
+                record.x = buffer.getFloat();
+                record.y = buffer.getFloat();
+                record.fontSize = readVarInt(buffer);
+                record.text = readString(buffer);
+                break;
+            case AnnotationRecord.CATEGORY_STROKE:
+                readPoints(buffer, record);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown annotation category " + record.category);
+        }
+    }
+
+    private static void readPoints(ByteBuffer buffer, AnnotationRecord record) {
+        int count = readVarInt(buffer);
+        if (count < 0 || count > buffer.remaining() / 8) {
+            throw new BufferUnderflowException();
+        }
+        record.ensurePointCapacity(record.pointCount + count);
+        for (int i = 0; i < count; i++) {
+            float x = buffer.getFloat();
+            record.addPoint(x, buffer.getFloat());
+        }
+    }
+
+    private String readString(ByteBuffer buffer) {
+        int length = readVarInt(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + length);
+            return new String(buffer.array(), offset, length, StandardCharsets.UTF_8);
+        }
+
+        if (textScratch.length < length) {
+            textScratch = new byte[Integer.highestOneBit(length) << 1];
+        }
+        buffer.get(textScratch, 0, length);
+        return new String(textScratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Unsigned LEB128, at most five bytes for a 32-bit value.
+    static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,181 @@
+package io.orcana;
+
+import android.graphics.RectF;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Uniform grid over normalized room space, indexing the shapes of an AnnotationScene by their
+ * bounds. Each shape is listed in every cell its bounds overlap, so hit tests and area queries
+ * only look at the shapes near them instead of the whole scene.
+ *
+ * The grid also groups shapes into coarser tiles, by the center of their bounds, which is how
+ * the scene splits its static layer into pictures that can be re-recorded and culled on their
+ * own. Shapes outside the unit square are clamped to the border cells.
+ *
+ * Not thread safe, the scene only uses it while holding its lock.
+ */
+final class AnnotationGrid {
+    static final int CELLS = 8;
+    static final int TILES = 4;
+    static final int TILE_COUNT = TILES * TILES;
+
+    static final class Entry {
+        AnnotationView.Shape shape;
+        // Insertion order, kept across updates so the drawing order stays stable
+        final long order;
+        int left;
+        int top;
+        int right;
+        int bottom;
+        int tile;
+        // Last query that returned the entry, so shapes spanning several cells are reported once
+        int queryStamp;
+
+        Entry(long order) {
+            this.order = order;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private final ArrayList<Entry>[] cells = new ArrayList[CELLS * CELLS];
+    @SuppressWarnings("unchecked")
+    private final ArrayList<Entry>[] tiles = new ArrayList[TILE_COUNT];
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private long nextOrder;
+    private int queryStamp;
+
+    AnnotationGrid() {
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = new ArrayList<>();
+        }
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new ArrayList<>();
+        }
+    }
+
+    // Indexes the shape at its current bounds, returns the tile it was in before or -1
+    int update(AnnotationView.Shape shape) {
+        Entry entry = entries.get(shape.id);
+        int previousTile = -1;
+        if (entry == null) {
+            entry = new Entry(nextOrder++);
+            entries.put(shape.id, entry);
+        } else {
+            previousTile = entry.tile;
+            unlink(entry);
+        }
+        entry.shape = shape;
+
+        RectF bounds = shape.bounds;
+        entry.left = cell(bounds.left);
+        entry.top = cell(bounds.top);
+        entry.right = cell(bounds.right);
+        entry.bottom = cell(bounds.bottom);
+        entry.tile = tile(bounds.centerX()) + tile(bounds.centerY()) * TILES;
+        link(entry);
+        return previousTile;
+    }
+
+    // Returns the tile the shape was in, or -1 if it was not indexed
+    int remove(String id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return -1;
+        }
+        unlink(entry);
+        return entry.tile;
+    }
+
+    void clear() {
+        entries.clear();
+        for (ArrayList<Entry> cell : cells) {
+            cell.clear();
+        }
+        for (ArrayList<Entry> tile : tiles) {
+            tile.clear();
+        }
+    }
+
+    // Returns the tile of an indexed shape, or -1
+    int tileOf(String id) {
+        Entry entry = entries.get(id);
+        return entry == null ? -1 : entry.tile;
+    }
+
+    // Shapes grouped in a tile, in no particular order
+    List<Entry> tile(int tile) {
+        return tiles[tile];
+    }
+
+    // Adds the shapes whose bounds intersect the area to out, each once
+    void query(RectF area, List<AnnotationView.Shape> out) {
+        int stamp = ++queryStamp;
+        int right = cell(area.right);
+        int bottom = cell(area.bottom);
+        for (int row = cell(area.top); row <= bottom; row++) {
+            for (int column = cell(area.left); column <= right; column++) {
+                ArrayList<Entry> cell = cells[column + row * CELLS];
+                for (int i = 0, size = cell.size(); i < size; i++) {
+                    Entry entry = cell.get(i);
+                    if (entry.queryStamp != stamp && RectF.intersects(entry.shape.bounds, area)) {
+                        entry.queryStamp = stamp;
+                        out.add(entry.shape);
+                    }
+                }
+            }
+        }
+    }
+
+    // The most recently added shape whose bounds contain the point, or null
+    @Nullable
+    AnnotationView.Shape hitTest(float x, float y) {
+        ArrayList<Entry> cell = cells[cell(x) + cell(y) * CELLS];
+        Entry hit = null;
+        for (int i = 0, size = cell.size(); i < size; i++) {
+            Entry entry = cell.get(i);
+            if ((hit == null || entry.order > hit.order) && entry.shape.bounds.contains(x, y)) {
+                hit = entry;
+            }
+        }
+        return hit == null ? null : hit.shape;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void link(Entry entry) {
+        for (int row = entry.top; row <= entry.bottom; row++) {
+            for (int column = entry.left; column <= entry.right; column++) {
+                cells[column + row * CELLS].add(entry);
+            }
+        }
+        tiles[entry.tile].add(entry);
+    }
+
+    private void unlink(Entry entry) {
+        for (int row = entry.top; row <= entry.bottom; row++) {
+            for (int column = entry.left; column <= entry.right; column++) {
+                cells[column + row * CELLS].remove(entry);
+            }
+        }
+        tiles[entry.tile].remove(entry);
+    }
+
+    private static int cell(float coordinate) {
+        return clamp((int) Math.floor(coordinate * CELLS), CELLS);
+    }
+
+    private static int tile(float coordinate) {
+        return clamp((int) Math.floor(coordinate * TILES), TILES);
+    }
+
+    private static int clamp(int index, int count) {
+        return index < 0 ? 0 : index >= count ? count - 1 : index;
+    }
+}
@@ -0,0 +1,145 @@
+package io.orcana;
+
+import android.graphics.Color;
+
+// Reusable, primitive-only view of a single annotation as received from the console.
+// Both the JSON and the binary decoders fill one of these in place, so decoding a
+// message never builds per-shape intermediate objects.
+final class AnnotationRecord {
+    static final int CATEGORY_UNKNOWN = -1;
+    static final int CATEGORY_CIRCLE = 0;
+    static final int CATEGORY_RECT = 1;
+    static final int CATEGORY_LINE = 2;
+    static final int CATEGORY_TEXT = 3;
+    static final int CATEGORY_STROKE = 4;
+
+    int category;
+    String id;
+    // Per-shape sequence number, -1 when the sender does not use them
+    long seq;
+    int color;
+
+    // Circle
+    float cx;
+    float cy;
+    float r;
+
+    // Rect and Text
+    float x;
+    float y;
+    float width;
+    float height;
+    boolean hasTransform;
+    float transformX;
+    float transformY;
+
+    // Line
+    float x1;
+    float y1;
+    float x2;
+    float y2;
+
+    // Text
+    int fontSize;
+    String text;
+
+    // Stroke, packed x, y pairs. The array is kept across resets and only grows.
+    float[] points = new float[0];
+    int pointCount;
+
+    void reset() {
+        category = CATEGORY_UNKNOWN;
+        id = null;
+        seq = -1;
+        color = Color.BLACK;
+        cx = cy = r = 0f;
+        x = y = width = height = 0f;
+        hasTransform = false;
+        transformX = transformY = 0f;
+        x1 = y1 = x2 = y2 = 0f;
+        fontSize = 0;
+        text = null;
+        pointCount = 0;
+    }
+
+    void set(AnnotationRecord other) {
+        category = other.category;
+        id = other.id;
+        seq = other.seq;
+        color = other.color;
+        cx = other.cx;
+        cy = other.cy;
+        r = other.r;
+        x = other.x;
+        y = other.y;
+        width = other.width;
+        height = other.height;
+        hasTransform = other.hasTransform;
+        transformX = other.transformX;
+        transformY = other.transformY;
+        x1 = other.x1;
+        y1 = other.y1;
+        x2 = other.x2;
+        y2 = other.y2;
+        fontSize = other.fontSize;
+        text = other.text;
+        pointCount = 0;
+        appendPoints(other);
+    }
+
+    void addPoint(float x, float y) {
+        ensurePointCapacity(pointCount + 1);
+        points[pointCount * 2] = x;
+        points[pointCount * 2 + 1] = y;
+        pointCount++;
+    }
+
+    void appendPoints(AnnotationRecord other) {
+        ensurePointCapacity(pointCount + other.pointCount);
+        System.arraycopy(other.points, 0, points, pointCount * 2, other.pointCount * 2);
+        pointCount += other.pointCount;
+    }
+
+    void ensurePointCapacity(int count) {
+        if (points.length < count * 2) {
+            float[] grown = new float[Math.max(count * 2, points.length * 2)];
+            System.arraycopy(points, 0, grown, 0, pointCount * 2);
+            points = grown;
+        }
+    }
+
+    static int category(String category) {
+        switch (category) {
+            case "circle":
+                return CATEGORY_CIRCLE;
+            case "rect":
+                return CATEGORY_RECT;
+            case "line":
+                return CATEGORY_LINE;
+            case "text":
+                return CATEGORY_TEXT;
+            case "stroke":
+                return CATEGORY_STROKE;
+            default:
+                return CATEGORY_UNKNOWN;
+        }
+    }
+
+    // Parses a "translate(x,y)" transform, leaving the previous offsets untouched for "null".
+    void parseTransform(String transform) {
+        if (transform == null || transform.equals("null")) {
+            return;
+        }
+        String removed = transform.substring(10);
+        int index = removed.indexOf(",");
+        transformX = Float.parseFloat(removed.substring(0, index));
+        transformY = Float.parseFloat(removed.substring(index + 1, removed.indexOf(")")));
+        hasTransform = true;
+    }
+
+    // Accepts both "24" and "24px"
+    static int parseFontSize(String fontSize) {
+        int unit = fontSize.indexOf("p");
+        return Integer.parseInt(unit < 0 ? fontSize.trim() : fontSize.substring(0, unit));
+    }
+}
@@ -0,0 +1,307 @@
+package io.orcana;
+
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.RectF;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Double buffered set of annotation shapes. Writers edit a back buffer and publish an immutable
+ * Snapshot, which the UI thread renders without taking a lock.
+ *
+ * Shapes are copy-on-write: once a shape has been published it is never mutated again, edit()
+ * hands out a private copy instead. Only one thread may write at a time; in practice that is the
+ * data track message thread draining the AnnotationCoalescer.
+ *
+ * Shapes that have not changed for a while are "static" and recorded into cached Pictures.
+ * Shapes that are being added or edited are "live" and drawn individually on top of them, so a
+ * frame costs a few picture replays plus the live shapes. Each publish reports the union of the
+ * old and new bounds of what changed so the view can invalidate just that region.
+ *
+ * Shapes are indexed in an AnnotationGrid, which also splits the static layer into tiles by the
+ * center of each shape. A tile's picture is only re-recorded when one of its shapes enters or
+ * leaves the static set, and the view skips tiles whose shapes are all off-screen. Static shapes
+ * keep their insertion order within a tile.
+ *
+ * Everything in here is in normalized room space (see AnnotationView), so nothing has to be
+ * re-recorded when the view is resized.
+ */
+final class AnnotationScene {
+    // How long a shape has to stay untouched before it is folded into the cached layer
+    static final long SETTLE_MILLIS = 500;
+
+    // Static shapes of one tile, recorded into a picture along with the union of their bounds
+    static final class StaticTile {
+        final Picture picture;
+        final RectF bounds;
+
+        StaticTile(Picture picture, RectF bounds) {
+            this.picture = picture;
+            this.bounds = bounds;
+        }
+    }
+
+    static final class Snapshot {
+        // AnnotationGrid.TILE_COUNT entries, null for tiles without static shapes
+        final StaticTile[] staticTiles;
+        final AnnotationView.Shape[] live;
+        // Normalized, null when the whole view has to be redrawn
+        final RectF dirty;
+        final long version;
+
+        Snapshot(StaticTile[] staticTiles, AnnotationView.Shape[] live, RectF dirty, long version) {
+            this.staticTiles = staticTiles;
+            this.live = live;
+            this.dirty = dirty;
+            this.version = version;
+        }
+    }
+
+    // Never modified, published tile arrays are replaced rather than written to
+    private static final StaticTile[] NO_TILES = new StaticTile[AnnotationGrid.TILE_COUNT];
+    private static final Snapshot EMPTY = new Snapshot(NO_TILES, new AnnotationView.Shape[0], null, 0);
+    private static final Comparator<AnnotationGrid.Entry> BY_ORDER =
+            (a, b) -> Long.compare(a.order, b.order);
+
+    // Shapes by id, the grid keeps track of the order they were added in
+    private final LinkedHashMap<String, AnnotationView.Shape> shapes = new LinkedHashMap<>();
+    // Live shape ids mapped to the uptime of their last change
+    private final LinkedHashMap<String, Long> live = new LinkedHashMap<>();
+    // Shapes created or copied since the last publish
+    private final ArrayList<AnnotationView.Shape> unpublished = new ArrayList<>();
+
+    private final AnnotationGrid grid = new AnnotationGrid();
+    private final ArrayList<AnnotationGrid.Entry> tileEntries = new ArrayList<>();
+    private StaticTile[] staticTiles = NO_TILES;
+    // Bit per tile whose picture has to be re-recorded
+    private int dirtyTiles;
+
+    private final RectF dirtyBounds = new RectF();
+    private boolean fullInvalidate;
+    private boolean dirty;
+    private long version;
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    synchronized void put(AnnotationView.Shape shape) {
+        AnnotationView.Shape previous = shapes.put(shape.id, shape);
+        if (previous != null) {
+            markChanged(previous);
+        }
+        // New shapes start out live, replacing a static one invalidates its tile
+        if (live.put(shape.id, SystemClock.uptimeMillis()) == null && previous != null) {
+            markTileDirty(grid.tileOf(shape.id));
+        }
+        unpublished.add(shape);
+        dirty = true;
+    }
+
+    // Returns a shape that is safe to mutate until the next publish, or null if there is none
+    synchronized AnnotationView.Shape edit(String id) {
+        AnnotationView.Shape shape = shapes.get(id);
+        if (shape == null) {
+            return null;
+        }
+        if (shape.published) {
+            // The old bounds have to be repainted wherever the shape moves to
+            markChanged(shape);
+            shape = shape.copy();
+            shapes.put(id, shape);
+            unpublished.add(shape);
+        }
+        if (live.put(id, SystemClock.uptimeMillis()) == null) {
+            // Leaving the static set
+            markTileDirty(grid.tileOf(id));
+        }
+        dirty = true;
+        return shape;
+    }
+
+    synchronized boolean remove(String id) {
+        AnnotationView.Shape shape = shapes.remove(id);
+        if (shape == null) {
+            return false;
+        }
+        int tile = grid.remove(id);
+        if (live.remove(id) == null) {
+            markTileDirty(tile);
+        }
+        markChanged(shape);
+        dirty = true;
+        return true;
+    }
+
+    synchronized void clear() {
+        if (!shapes.isEmpty()) {
+            shapes.clear();
+            live.clear();
+            unpublished.clear();
+            grid.clear();
+            staticTiles = NO_TILES;
+            dirtyTiles = 0;
+            fullInvalidate = true;
+            dirty = true;
+        }
+    }
+
+    synchronized int size() {
+        return shapes.size();
+    }
+
+    // Id of the topmost shape whose bounds contain the normalized point, or null
+    synchronized String hitTest(float x, float y) {
+        AnnotationView.Shape shape = grid.hitTest(x, y);
+        return shape == null ? null : shape.id;
+    }
+
+    // Adds the shapes intersecting the normalized area to out, as of the last publish
+    synchronized void query(RectF area, List<AnnotationView.Shape> out) {
+        grid.query(area, out);
+    }
+
+    // Returns the new snapshot, or null if nothing changed since the last publish
+    synchronized Snapshot publish() {
+        long now = SystemClock.uptimeMillis();
+        if (!dirty && !isSettleDue(now)) {
+            return null;
+        }
+
+        for (int i = 0, size = unpublished.size(); i < size; i++) {
+            AnnotationView.Shape shape = unpublished.get(i);
+            shape.published = true;
+            if (shapes.get(shape.id) == shape) {
+                dirtyBounds.union(shape.bounds);
+                // Live, so moving it between tiles does not touch any picture
+                grid.update(shape);
+            }
+        }
+        unpublished.clear();
+
+        settle(now);
+        if (dirtyTiles != 0) {
+            recordStaticTiles();
+        }
+
+        AnnotationView.Shape[] liveShapes = new AnnotationView.Shape[live.size()];
+        int i = 0;
+        for (String id : live.keySet()) {
+            liveShapes[i++] = shapes.get(id);
+        }
+
+        RectF invalidate = null;
+        if (!fullInvalidate && !dirtyBounds.isEmpty()) {
+            invalidate = new RectF(dirtyBounds);
+        }
+        snapshot = new Snapshot(staticTiles, liveShapes, invalidate, ++version);
+
+        dirtyBounds.setEmpty();
+        fullInvalidate = false;
+        dirty = false;
+        return snapshot;
+    }
+
+    /*
+     * Milliseconds until the next live shape settles, or -1 if none is live. Shapes only settle
+     * when the scene is published, so the writer publishes again by then even if nothing changed.
+     */
+    synchronized long settleDelayMillis() {
+        long now = SystemClock.uptimeMillis();
+        long delay = -1;
+        for (long touched : live.values()) {
+            long remaining = Math.max(0, touched + SETTLE_MILLIS - now);
+            if (delay < 0 || remaining < delay) {
+                delay = remaining;
+            }
+        }
+        return delay;
+    }
+
+    // Used by callers outside the writer thread, atomically empties the scene
+    synchronized void clearAndPublish() {
+        clear();
+        publish();
+    }
+
+    private void markChanged(AnnotationView.Shape shape) {
+        dirtyBounds.union(shape.bounds);
+    }
+
+    private void markTileDirty(int tile) {
+        if (tile >= 0) {
+            dirtyTiles |= 1 << tile;
+        }
+    }
+
+    // Folds shapes that have not changed for SETTLE_MILLIS back into the cached layer
+    private void settle(long now) {
+        Iterator<Map.Entry<String, Long>> iterator = live.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (now - entry.getValue() >= SETTLE_MILLIS) {
+                iterator.remove();
+                markTileDirty(grid.tileOf(entry.getKey()));
+                // Looks the same, but is now drawn from its tile
+                markChanged(shapes.get(entry.getKey()));
+            }
+        }
+    }
+
+    private boolean isSettleDue(long now) {
+        for (long touched : live.values()) {
+            if (now - touched >= SETTLE_MILLIS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recordStaticTiles() {
+        StaticTile[] tiles = staticTiles.clone();
+        for (int tile = 0; tile < tiles.length; tile++) {
+            if ((dirtyTiles & (1 << tile)) != 0) {
+                tiles[tile] = recordStaticTile(tile);
+            }
+        }
+        staticTiles = tiles;
+        dirtyTiles = 0;
+    }
+
+    private StaticTile recordStaticTile(int tile) {
+        List<AnnotationGrid.Entry> entries = grid.tile(tile);
+        for (int i = 0, size = entries.size(); i < size; i++) {
+            AnnotationGrid.Entry entry = entries.get(i);
+            if (!live.containsKey(entry.shape.id)) {
+                tileEntries.add(entry);
+            }
+        }
+        if (tileEntries.isEmpty()) {
+            return null;
+        }
+        Collections.sort(tileEntries, BY_ORDER);
+
+        Picture picture = new Picture();
+        RectF bounds = new RectF();
+        // Shapes may stick out of the unit square, the size is only a hint for culling
+        Canvas canvas = picture.beginRecording(1, 1);
+        for (int i = 0, size = tileEntries.size(); i < size; i++) {
+            AnnotationView.Shape shape = tileEntries.get(i).shape;
+            shape.onDraw(canvas);
+            bounds.union(shape.bounds);
+        }
+        picture.endRecording();
+        tileEntries.clear();
+        return new StaticTile(picture, bounds);
+    }
+}
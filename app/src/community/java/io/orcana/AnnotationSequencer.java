@@ -0,0 +1,62 @@
+package io.orcana;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Per-shape sequence numbers, so the annotation channel can be unordered and unreliable. Every
+ * ADD, UPDATE and REMOVE of a shape carries a sequence number that increases with each change
+ * the console makes to that shape, and anything not newer than the last one applied is stale.
+ *
+ * The sequence number of a removed shape is kept as a tombstone, so a late ADD or UPDATE cannot
+ * bring it back. Only the most recently changed MAX_TRACKED_SHAPES are remembered.
+ *
+ * Messages without a sequence number are always applied.
+ */
+final class AnnotationSequencer {
+    static final int MAX_TRACKED_SHAPES = 4096;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Long> lastSequence =
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_TRACKED_SHAPES;
+                }
+            };
+    private long droppedCount;
+
+    // Returns whether the change is newer than anything applied to the shape so far
+    synchronized boolean accept(String id, long seq) {
+        if (seq < 0) {
+            return true;
+        }
+        Long last = lastSequence.get(id);
+        if (last != null && seq <= last) {
+            droppedCount++;
+            return false;
+        }
+        lastSequence.put(id, seq);
+        return true;
+    }
+
+    // A snapshot replaces the whole scene, its shapes start over from their own sequence numbers
+    synchronized void reset(List<AnnotationRecord> annotations) {
+        lastSequence.clear();
+        for (int i = 0, size = annotations.size(); i < size; i++) {
+            AnnotationRecord annotation = annotations.get(i);
+            if (annotation.seq >= 0) {
+                lastSequence.put(annotation.id, annotation.seq);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        lastSequence.clear();
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,48 @@
+package io.orcana;
+
+import android.graphics.Color;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Colors and font sizes arrive as strings ("#ff0000", "24px") and a session only uses a handful
+ * of distinct ones, so each is parsed once and the result shared by every parser. Should a
+ * sender ever cycle through more than MAX_ENTRIES the cache simply starts over.
+ */
+final class AnnotationStyleCache {
+    static final int MAX_ENTRIES = 256;
+
+    private static final ConcurrentHashMap<String, Integer> colors = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Integer> fontSizes = new ConcurrentHashMap<>();
+
+    private AnnotationStyleCache() {}
+
+    // Throws IllegalArgumentException like Color.parseColor, failures are not cached
+    static int color(String color) {
+        Integer cached = colors.get(color);
+        if (cached != null) {
+            return cached;
+        }
+        int parsed = Color.parseColor(color);
+        put(colors, color, parsed);
+        return parsed;
+    }
+
+    // Throws NumberFormatException like AnnotationRecord.parseFontSize, failures are not cached
+    static int fontSize(String fontSize) {
+        Integer cached = fontSizes.get(fontSize);
+        if (cached != null) {
+            return cached;
+        }
+        int parsed = AnnotationRecord.parseFontSize(fontSize);
+        put(fontSizes, fontSize, parsed);
+        return parsed;
+    }
+
+    private static void put(ConcurrentHashMap<String, Integer> cache, String key, int value) {
+        if (cache.size() >= MAX_ENTRIES) {
+            cache.clear();
+        }
+        cache.put(key, value);
+    }
+}
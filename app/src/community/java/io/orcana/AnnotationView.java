@@ -1,32 +1,46 @@
 package io.orcana;
 
 import android.annotation.SuppressLint;
-import android.app.Activity;
 import android.content.Context;
-import android.content.ContextWrapper;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.PointF;
+import android.graphics.RectF;
 import android.util.AttributeSet;
-import android.util.Base64;
 import android.view.View;
-import android.widget.ImageView;
 
 import androidx.annotation.Nullable;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.HashMap;
+import java.util.ArrayList;
 
 import timber.log.Timber;
 
+/*
+ * Shapes are kept in normalized room space: room pixels divided by the room's width, so (0,0)
+ * to (1, height / width) spans the remote room and circles, text and stroke widths keep their
+ * proportions. They are drawn through a single room-to-view matrix that fits the room into the
+ * view at the same scale on both axes, centered, the way the screenshot view fits a screenshot.
+ * A resize only rebuilds that matrix, no shape has to be touched or resent. Sizes below are in
+ * remote room pixels and normalized per shape.
+ */
 public class AnnotationView extends View {
+    private static final float STROKE_WIDTH = 5.0f;
+    // Half the stroke width plus a pixel of anti-aliasing, added around every shape's bounds
+    private static final float BOUNDS_OUTSET = 4.0f;
+    private static final int ARROW_HALF_WIDTH = 10 / 2;
+    // Strokes are simplified once they reach MAX_STROKE_POINTS, down to at most half of that
+    static final int MAX_STROKE_POINTS = 2048;
+    // Points per sealed segment of a stroke's path
+    static final int STROKE_SEGMENT_POINTS = 128;
+    private static final float STROKE_SIMPLIFY_EPSILON = 0.75f;
+
+    // Template for the per-shape paints
     final Paint paint;
+    // Only touched on the UI thread
+    private final Matrix roomToView = new Matrix();
+    // Room height over width, from the latest shape, 0 until one arrives
+    private volatile float roomAspect;
 
     public AnnotationView(Context context) {
         this(context, null, 0, 0);
@@ -46,8 +60,10 @@ public class AnnotationView extends View {
 
         this.paint = new Paint();
         this.paint.setStyle(Paint.Style.STROKE);
-        this.paint.setStrokeWidth(5.0f);
+        this.paint.setStrokeWidth(STROKE_WIDTH);
         this.paint.setStrokeCap(Paint.Cap.ROUND);
+
+        this.scene = new AnnotationScene();
     }
 
     public void disconnectedFromRoom() {
@@ -57,149 +73,203 @@ public class AnnotationView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        for (Shape s : shapes.values()) {
-            s.onDraw(canvas, this.paint);
+        // Lock-free, published shapes are never mutated
+        AnnotationScene.Snapshot snapshot = scene.snapshot();
+        int width = getWidth();
+        int height = getHeight();
+        float scale = roomScale(width, height);
+        roomToView.setScale(scale, scale);
+        roomToView.postTranslate(roomLeft(width, scale), roomTop(height, scale));
+        int saveCount = canvas.save();
+        canvas.concat(roomToView);
+        for (AnnotationScene.StaticTile tile : snapshot.staticTiles) {
+            if (tile != null && !canvas.quickReject(tile.bounds, Canvas.EdgeType.AA)) {
+                canvas.drawPicture(tile.picture);
+            }
         }
+        for (Shape s : snapshot.live) {
+            if (!canvas.quickReject(s.bounds, Canvas.EdgeType.AA)) {
+                s.onDraw(canvas);
+            }
+        }
+        canvas.restoreToCount(saveCount);
     }
 
-    public void addShape(JSONObject annotation, JSONObject roomDimensions) {
-        try {
-            String category = annotation.getString("category");
-            String id = annotation.getString("id");
-            switch (category) {
-                case "circle":
-
-                    shapes.put(id, new Circle(annotation, roomDimensions));
-                    invalidate();
-                    break;
-                case "rect":
-                    shapes.put(id, new Rect(annotation, roomDimensions));
-                    invalidate();
-                    break;
-                case "line":
-                    shapes.put(id, new Line(annotation, roomDimensions));
-                    invalidate();
-                    break;
-                case "text":
-                    shapes.put(id, new Text(annotation, roomDimensions));
-                    invalidate();
-                    break;
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+    // Shapes in the scene's back buffer, for tests and the replay harness
+    int getShapeCount() {
+        return scene.size();
+    }
+
+    // Id of the topmost published shape under a point in view pixels, or null
+    @Nullable
+    String hitTest(float x, float y) {
+        int width = getWidth();
+        int height = getHeight();
+        if (width == 0 || height == 0) {
+            return null;
         }
+        float scale = roomScale(width, height);
+        return scene.hitTest((x - roomLeft(width, scale)) / scale, (y - roomTop(height, scale)) / scale);
     }
 
-    public void updateShape(JSONObject annotation, JSONObject roomDimensions) {
-        try {
-            String id = annotation.getString("id");
+    // The mutators below only edit the scene's back buffer. AnnotationCoalescer applies a whole
+    // frame's worth of changes from the data track thread, then publishes and invalidates once.
+    void addShape(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+        setRoomAspect(roomWidth, roomHeight);
+        switch (annotation.category) {
+            case AnnotationRecord.CATEGORY_CIRCLE:
+                scene.put(new Circle(annotation, roomWidth, roomHeight));
+                break;
+            case AnnotationRecord.CATEGORY_RECT:
+                scene.put(new Rect(annotation, roomWidth, roomHeight));
+                break;
+            case AnnotationRecord.CATEGORY_LINE:
+                scene.put(new Line(annotation, roomWidth, roomHeight));
+                break;
+            case AnnotationRecord.CATEGORY_TEXT:
+                scene.put(new Text(annotation, roomWidth, roomHeight));
+                break;
+            case AnnotationRecord.CATEGORY_STROKE:
+                scene.put(new Stroke(annotation, roomWidth, roomHeight));
+                break;
+        }
+    }
 
-            if (shapes.containsKey(id)) {
-                Shape s = shapes.get(id);
-                s.updateValues(annotation, roomDimensions);
-                invalidate();
-            } else {
-                Timber.d("Could not find Shape with id %s", id);
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+    void updateShape(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+        setRoomAspect(roomWidth, roomHeight);
+        Shape s = scene.edit(annotation.id);
+
+        if (s != null) {
+            s.updateValues(annotation, roomWidth, roomHeight);
+        } else {
+            Timber.d("Could not find Shape with id %s", annotation.id);
         }
     }
 
-    public void removeShape(JSONObject annotation) {
-        try {
-            String id = annotation.getString("id");
+    void appendPoints(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+        Shape s = scene.edit(annotation.id);
 
-            if (shapes.containsKey(id)) {
-                shapes.remove(id);
-                invalidate();
-            } else {
-                Timber.d("Could not find Shape with id %s", id);
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+        if (s instanceof Stroke) {
+            ((Stroke) s).append(annotation, roomWidth, roomHeight);
+        } else {
+            Timber.d("Could not find Stroke with id %s", annotation.id);
         }
     }
 
-    public void clearShapes() {
-        shapes.clear();
-        invalidate();
+    void removeShape(String id) {
+        if (!scene.remove(id)) {
+            Timber.d("Could not find Shape with id %s", id);
+        }
+    }
+
+    void removeAllShapes() {
+        scene.clear();
     }
 
-    private final HashMap<String, Shape> shapes = new HashMap<>();
+    // See AnnotationScene.settleDelayMillis()
+    long settleDelayMillis() {
+        return scene.settleDelayMillis();
+    }
 
-    public void handleScreenshot(JSONObject screenShot, ImageView screenShotView){
-        Activity a = getActivity(screenShotView);
-        if(a == null){
+    // Publishes on the writer thread and invalidates only the region that changed
+    void publishShapes() {
+        AnnotationScene.Snapshot snapshot = scene.publish();
+        if (snapshot == null) {
             return;
         }
 
-        if(screenShot.isNull("src")) {
-            a.runOnUiThread(() -> {
-                screenShotView.setVisibility(View.INVISIBLE);
-                screenShotView.setImageBitmap(null);
-            });
+        RectF dirty = snapshot.dirty;
+        if (dirty == null) {
+            postInvalidateOnAnimation();
         } else {
-            try {
-                String src = screenShot.getString("src");
-                String cleanImage = src.replace("data:image/jpeg;base64,","");
-                byte[] decodedString = Base64.decode(cleanImage, Base64.DEFAULT);
-                Bitmap bitMap = BitmapFactory.decodeByteArray(decodedString, 0, decodedString.length);
-                a.runOnUiThread(() -> {
-                    screenShotView.setImageBitmap(bitMap);
-                    screenShotView.setVisibility(View.VISIBLE);
-                });
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+            // Same mapping as roomToView, which belongs to the UI thread, plus a pixel of
+            // anti-aliasing in case the room is scaled down
+            int width = getWidth();
+            int height = getHeight();
+            float scale = roomScale(width, height);
+            float left = roomLeft(width, scale);
+            float top = roomTop(height, scale);
+            postInvalidateOnAnimation(
+                    (int) Math.floor(left + dirty.left * scale) - 1,
+                    (int) Math.floor(top + dirty.top * scale) - 1,
+                    (int) Math.ceil(left + dirty.right * scale) + 1,
+                    (int) Math.ceil(top + dirty.bottom * scale) + 1);
         }
     }
 
-    private Activity getActivity(View view) {
-        Context context = view == null ? getContext() : view.getContext();
-        while (context instanceof ContextWrapper) {
-            if (context instanceof Activity) {
-                return (Activity)context;
-            }
-            context = ((ContextWrapper)context).getBaseContext();
+    public void clearShapes() {
+        scene.clearAndPublish();
+        postInvalidateOnAnimation();
+    }
+
+    private final AnnotationScene scene;
+
+    // Writer thread, a room of a new shape redraws everything at its aspect ratio
+    private void setRoomAspect(float roomWidth, float roomHeight) {
+        float aspect = roomHeight / roomWidth;
+        if (aspect != roomAspect) {
+            roomAspect = aspect;
+            postInvalidateOnAnimation();
         }
-        return null;
     }
 
-    private float scaleRadius(float currentRadius, JSONObject roomDimensions) throws JSONException {
-        PointF remoteDimensions = new PointF(Double.valueOf(roomDimensions.getDouble("width")).floatValue(),
-                                             Double.valueOf(roomDimensions.getDouble("height")).floatValue());
-        PointF localDimensions = new PointF(getWidth(), getHeight());
+    // View pixels per normalized unit. Until a shape arrives the room is assumed to fit the width.
+    private float roomScale(int width, int height) {
+        float aspect = roomAspect;
+        return aspect > 0f ? Math.min(width, height / aspect) : width;
+    }
 
-        return currentRadius / remoteDimensions.x * localDimensions.x;
+    private float roomLeft(int width, float scale) {
+        return (width - scale) / 2f;
     }
 
-    private PointF scaleCoord(PointF currentPoint, JSONObject roomDimensions) throws JSONException {
-        PointF remoteDimensions = new PointF(Double.valueOf(roomDimensions.getDouble("width")).floatValue(),
-                                             Double.valueOf(roomDimensions.getDouble("height")).floatValue());
-        PointF localDimensions = new PointF(getWidth(), getHeight());
+    private float roomTop(int height, float scale) {
+        float aspect = roomAspect;
+        return aspect > 0f ? (height - scale * aspect) / 2f : 0f;
+    }
 
-        PointF newCoords = new PointF();
-        newCoords.x = currentPoint.x / remoteDimensions.x * localDimensions.x;
-        newCoords.y = currentPoint.y / remoteDimensions.y * localDimensions.y;
-        return newCoords;
+    // Coordinates and lengths alike are normalized by the room's width
+    private static float normalize(float value, float roomWidth) {
+        return value / roomWidth;
     }
 
     abstract class Shape {
         int color;
         String id;
+        // Set once the shape is part of a published snapshot, after which it is read-only
+        boolean published;
+        // Drawn area in normalized room coordinates, including the stroke
+        final RectF bounds = new RectF();
+        // Draw state is resolved in updateValues so onDraw never touches a shared Paint
+        final Paint shapePaint;
+
+        public Shape(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            this.id = annotation.id;
+            this.color = annotation.color;
+            this.shapePaint = new Paint(paint);
+            this.shapePaint.setColor(color);
+            updateValues(annotation, roomWidth, roomHeight);
+        }
 
-        public Shape(JSONObject annotation, JSONObject roomDimensions) throws JSONException {
-            this.id = annotation.getString("id");
-            this.color = Color.parseColor(annotation.getString("color"));
-            updateValues(annotation, roomDimensions);
+        Shape(Shape other) {
+            this.id = other.id;
+            this.color = other.color;
+            this.bounds.set(other.bounds);
+            this.shapePaint = new Paint(other.shapePaint);
         }
 
-        abstract public void updateValues(JSONObject annotation, JSONObject roomDimensions) throws JSONException;
+        abstract Shape copy();
+
+        abstract public void updateValues(AnnotationRecord annotation, float roomWidth, float roomHeight);
 
-        public void onDraw(Canvas canvas, Paint p){
-            paint.setColor(color);
+        // Keeps the stroke at STROKE_WIDTH room pixels, returns the matching bounds outset
+        float updateStroke(float roomWidth) {
+            shapePaint.setStrokeWidth(normalize(STROKE_WIDTH, roomWidth));
+            return normalize(BOUNDS_OUTSET, roomWidth);
         }
+
+        // Must not allocate, runs for every live shape on every frame
+        abstract public void onDraw(Canvas canvas);
     }
 
     class Circle extends Shape {
@@ -207,27 +277,36 @@ public class AnnotationView extends View {
         public float cy;
         public float radius;
 
-        public Circle(JSONObject annotation, JSONObject roomDimensions) throws JSONException {
-            super(annotation, roomDimensions);
+        public Circle(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            super(annotation, roomWidth, roomHeight);
+        }
+
+        Circle(Circle other) {
+            super(other);
+            this.cx = other.cx;
+            this.cy = other.cy;
+            this.radius = other.radius;
         }
 
         @Override
-        public void updateValues(JSONObject annotation, JSONObject roomDimensions) throws JSONException {
-            PointF currentPointC = new PointF(
-                    Double.valueOf(annotation.getDouble("cx")).floatValue(),
-                    Double.valueOf(annotation.getDouble("cy")).floatValue()
-            );
-            PointF scaledPointC = scaleCoord(currentPointC, roomDimensions);
+        Shape copy() {
+            return new Circle(this);
+        }
 
-            cx = scaledPointC.x;
-            cy = scaledPointC.y;
-            radius = scaleRadius(Double.valueOf(annotation.getDouble("r")).floatValue(), roomDimensions);
+        @Override
+        public void updateValues(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            cx = normalize(annotation.cx, roomWidth);
+            cy = normalize(annotation.cy, roomWidth);
+            radius = normalize(annotation.r, roomWidth);
+            float outset = updateStroke(roomWidth);
+
+            bounds.set(cx - radius, cy - radius, cx + radius, cy + radius);
+            bounds.inset(-outset, -outset);
         }
 
         @Override
-        public void onDraw(Canvas canvas, Paint p) {
-            super.onDraw(canvas, p);
-            canvas.drawCircle(cx, cy, radius, p);
+        public void onDraw(Canvas canvas) {
+            canvas.drawCircle(cx, cy, radius, shapePaint);
         }
     }
 
@@ -239,59 +318,50 @@ public class AnnotationView extends View {
         public float width;
         public float height;
 
-        public Rect(JSONObject annotation, JSONObject roomDimensions) throws JSONException {
-            super(annotation, roomDimensions);
+        public Rect(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            super(annotation, roomWidth, roomHeight);
+        }
+
+        Rect(Rect other) {
+            super(other);
+            this.x = other.x;
+            this.xOffset = other.xOffset;
+            this.y = other.y;
+            this.yOffset = other.yOffset;
+            this.width = other.width;
+            this.height = other.height;
         }
 
         @Override
-        public void updateValues(JSONObject annotation, JSONObject roomDimensions) throws JSONException {
-            PointF currentPointR;
-            PointF scaledPointR;
-
-            if (annotation.has("transform")) {
-                String transform = annotation.getString("transform");
-                if (!transform.equals("null")) {
-                    String removed = transform.substring(10);
-                    int index = removed.indexOf(",");
-                    String xString = removed.substring(0, index);
-                    String yString = removed.substring(index + 1, removed.indexOf(")"));
-                    currentPointR = new PointF(
-                            Float.parseFloat(xString),
-                            Float.parseFloat(yString)
-                    );
-                    scaledPointR = scaleCoord(currentPointR, roomDimensions);
-                    xOffset = scaledPointR.x;
-                    yOffset = scaledPointR.y;
-                }
-            }
+        Shape copy() {
+            return new Rect(this);
+        }
 
-            currentPointR = new PointF(
-                    Double.valueOf(annotation.getDouble("x")).floatValue(),
-                    Double.valueOf(annotation.getDouble("y")).floatValue()
-            );
-            scaledPointR = scaleCoord(currentPointR, roomDimensions);
-            x = scaledPointR.x;
-            y = scaledPointR.y;
+        @Override
+        public void updateValues(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            if (annotation.hasTransform) {
+                xOffset = normalize(annotation.transformX, roomWidth);
+                yOffset = normalize(annotation.transformY, roomWidth);
+            }
 
-            currentPointR = new PointF(
-                    Double.valueOf(annotation.getDouble("width")).floatValue(),
-                    Double.valueOf(annotation.getDouble("height")).floatValue()
-            );
-            scaledPointR = scaleCoord(currentPointR, roomDimensions);
+            x = normalize(annotation.x, roomWidth);
+            y = normalize(annotation.y, roomWidth);
+            width = normalize(annotation.width, roomWidth);
+            height = normalize(annotation.height, roomWidth);
+            float outset = updateStroke(roomWidth);
 
-            width = scaledPointR.x;
-            height = scaledPointR.y;
+            bounds.set(x + xOffset, y + yOffset, x + xOffset + width, y + yOffset + height);
+            bounds.sort();
+            bounds.inset(-outset, -outset);
         }
 
         @Override
-        public void onDraw(Canvas canvas, Paint p) {
-            super.onDraw(canvas, p);
-
+        public void onDraw(Canvas canvas) {
             float left = x + xOffset;
             float top = y + yOffset;
             float right = left + width;
             float bottom = top + height;
-            canvas.drawRect(left, top, right, bottom, p);
+            canvas.drawRect(left, top, right, bottom, shapePaint);
         }
     }
 
@@ -300,57 +370,248 @@ public class AnnotationView extends View {
         public float y1;
         public float x2;
         public float y2;
+        // Not initialized inline, updateValues first runs from the super constructor
+        Path arrow;
+
+        public Line(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            super(annotation, roomWidth, roomHeight);
+        }
+
+        Line(Line other) {
+            super(other);
+            this.x1 = other.x1;
+            this.y1 = other.y1;
+            this.x2 = other.x2;
+            this.y2 = other.y2;
+            this.arrow = new Path(other.arrow);
+        }
+
+        @Override
+        Shape copy() {
+            return new Line(this);
+        }
+
+        @Override
+        public void updateValues(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            x1 = normalize(annotation.x1, roomWidth);
+            y1 = normalize(annotation.y1, roomWidth);
+            x2 = normalize(annotation.x2, roomWidth);
+            y2 = normalize(annotation.y2, roomWidth);
+            float outset = updateStroke(roomWidth);
+            float arrowHalfWidth = normalize(ARROW_HALF_WIDTH, roomWidth);
+
+            bounds.set(x1, y1, x1, y1);
+            bounds.union(x2, y2);
+            // The arrow head reaches up to a diagonal of the half width past the tip
+            bounds.inset(-(outset + arrowHalfWidth * 2), -(outset + arrowHalfWidth * 2));
+
+            updateArrow(arrowHalfWidth);
+        }
+
+        // Triangle centered on the tip, pointing along the line
+        private void updateArrow(float halfWidth) {
+            if (arrow == null) {
+                arrow = new Path();
+            } else {
+                arrow.rewind();
+            }
+
+            float dx = x2 - x1;
+            float dy = y2 - y1;
+            float length = (float) Math.hypot(dx, dy);
+            if (length == 0f) {
+                return;
+            }
+            float nx = dx / length * halfWidth;
+            float ny = dy / length * halfWidth;
 
-        public Line(JSONObject annotation, JSONObject roomDimensions) throws JSONException {
-            super(annotation, roomDimensions);
+            arrow.moveTo(x2 + nx, y2 + ny); // Top
+            arrow.lineTo(x2 - nx - ny, y2 - ny + nx); // Bottom left
+            arrow.lineTo(x2 - nx + ny, y2 - ny - nx); // Bottom right
+            arrow.close();
         }
 
         @Override
-        public void updateValues(JSONObject annotation, JSONObject roomDimensions) throws JSONException {
-            PointF currentPoint1 = new PointF(
-                    Double.valueOf(annotation.getDouble("x1")).floatValue(),
-                    Double.valueOf(annotation.getDouble("y1")).floatValue()
-            );
-            PointF scaledPoint1 = scaleCoord(currentPoint1, roomDimensions);
+        public void onDraw(Canvas canvas) {
+            canvas.drawLine(x1, y1, x2, y2, shapePaint);
+            canvas.drawPath(arrow, shapePaint);
+        }
+    }
+
+    class Stroke extends Shape {
+        // Packed x, y pairs in normalized room space. Copies share the array and only read the
+        // points they were copied with, appends write past those and simplifying allocates anew.
+        float[] points;
+        int pointCount;
+        float epsilon;
+        float outset;
+        // The path is split into segments of STROKE_SEGMENT_POINTS points. Full ones are sealed
+        // and never modified again, so copies share them and only copy the open one: an edit
+        // copies at most MAX_STROKE_POINTS / STROKE_SEGMENT_POINTS references and one segment.
+        // Not initialized inline, updateValues first runs from the super constructor.
+        ArrayList<Path> segments;
+        Path path;
+        int segmentPoints;
+
+        public Stroke(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            super(annotation, roomWidth, roomHeight);
+        }
 
-            PointF currentPoint2 = new PointF(
-                    Double.valueOf(annotation.getDouble("x2")).floatValue(),
-                    Double.valueOf(annotation.getDouble("y2")).floatValue()
-            );
-            PointF scaledPoint2 = scaleCoord(currentPoint2, roomDimensions);
+        Stroke(Stroke other) {
+            super(other);
+            this.points = other.points;
+            this.pointCount = other.pointCount;
+            this.epsilon = other.epsilon;
+            this.outset = other.outset;
+            this.segments = new ArrayList<>(other.segments);
+            this.path = new Path(other.path);
+            this.segmentPoints = other.segmentPoints;
+        }
 
-            x1 = scaledPoint1.x;
-            y1 = scaledPoint1.y;
-            x2 = scaledPoint2.x;
-            y2 = scaledPoint2.y;
+        @Override
+        Shape copy() {
+            return new Stroke(this);
         }
 
         @Override
-        public void onDraw(Canvas canvas, Paint p) {
-            super.onDraw(canvas, p);
+        public void updateValues(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            if (path == null) {
+                segments = new ArrayList<>();
+                path = new Path();
+                shapePaint.setStrokeJoin(Paint.Join.ROUND);
+            }
+            outset = updateStroke(roomWidth);
+            epsilon = normalize(STROKE_SIMPLIFY_EPSILON, roomWidth);
+
+            // An ADD, or an UPDATE replacing every point. Updates without points only restyle.
+            if (annotation.pointCount > 0 || points == null) {
+                points = new float[Math.max(32, annotation.pointCount * 2)];
+                pointCount = 0;
+                rewindPath();
+                bounds.setEmpty();
+                appendNormalized(annotation, roomWidth, roomHeight);
+            }
+        }
+
+        void append(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            appendNormalized(annotation, roomWidth, roomHeight);
+        }
+
+        private void appendNormalized(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            int count = annotation.pointCount;
+            if (count == 0) {
+                return;
+            }
+            if (points.length < (pointCount + count) * 2) {
+                float[] grown = new float[Math.max((pointCount + count) * 2, points.length * 2)];
+                System.arraycopy(points, 0, grown, 0, pointCount * 2);
+                points = grown;
+            }
+
+            float[] source = annotation.points;
+            for (int i = 0; i < count; i++) {
+                float x = normalize(source[i * 2], roomWidth);
+                float y = normalize(source[i * 2 + 1], roomWidth);
+                points[pointCount * 2] = x;
+                points[pointCount * 2 + 1] = y;
+                if (pointCount == 0) {
+                    bounds.set(x - outset, y - outset, x + outset, y + outset);
+                } else {
+                    bounds.union(x - outset, y - outset);
+                    bounds.union(x + outset, y + outset);
+                }
+                lineTo(x, y, pointCount == 0);
+                pointCount++;
+            }
 
-            canvas.drawLine(x1, y1, x2, y2, p);
+            if (pointCount >= MAX_STROKE_POINTS) {
+                simplify();
+            }
+        }
 
-            // Draw Triangle
-            int halfWidth = 10 / 2;
-            PointF dirNorm = new PointF(x2 - x1, y2 - y1);
-            float dirNormValue = Double.valueOf(Math.sqrt((dirNorm.x * dirNorm.x) + (dirNorm.y * dirNorm.y))).floatValue();
-            dirNorm.x = (dirNorm.x / dirNormValue) * halfWidth;
-            dirNorm.y = (dirNorm.y / dirNormValue) * halfWidth;
+        // Keeps memory per stroke bounded, coarser each time a stroke still has too many points
+        private void simplify() {
+            float[] simplified = new float[points.length];
+            float tolerance = epsilon;
+            int count;
+            do {
+                // Both axes are already in room widths
+                count = StrokeSimplifier.simplify(points, pointCount, tolerance, 1f, simplified);
+                tolerance *= 2;
+            } while (count > MAX_STROKE_POINTS / 2);
+            points = simplified;
+            pointCount = count;
+
+            rewindPath();
+            for (int i = 0; i < pointCount; i++) {
+                lineTo(points[i * 2], points[i * 2 + 1], i == 0);
+            }
+        }
 
+        private void rewindPath() {
+            segments.clear();
+            path.rewind();
+            segmentPoints = 0;
+        }
 
-            Path path = new Path();
-            PointF top = new PointF(x2 + dirNorm.x, y2 + dirNorm.y);
-            path.moveTo(top.x, top.y); // Top
+        // Extends the open segment and seals it once full, the round caps hide the seams
+        private void lineTo(float x, float y, boolean first) {
+            if (first) {
+                // A lone point still shows up as a dot thanks to the round cap
+                path.moveTo(x, y);
+            }
+            path.lineTo(x, y);
+            if (++segmentPoints == STROKE_SEGMENT_POINTS) {
+                segments.add(path);
+                path = new Path();
+                path.moveTo(x, y);
+                segmentPoints = 0;
+            }
+        }
 
-            PointF bottom = new PointF(x2 - dirNorm.x, y2 - dirNorm.y);
-            PointF dirNormP = new PointF(dirNorm.y, -dirNorm.x);
-            path.lineTo(bottom.x - dirNormP.x, bottom.y - dirNormP.y); // Bottom left
-            path.lineTo(bottom.x + dirNormP.x, bottom.y + dirNormP.y); // Bottom right
+        @Override
+        public void onDraw(Canvas canvas) {
+            for (int i = 0, size = segments.size(); i < size; i++) {
+                canvas.drawPath(segments.get(i), shapePaint);
+            }
+            canvas.drawPath(path, shapePaint);
+        }
+    }
 
-            path.moveTo(top.x, top.y); // Back to Top
-            path.close();
-            canvas.drawPath(path, p);
+    /*
+     * Text measured once for a font size and room width: its lines, their baselines relative to
+     * the first one and the bounds relative to the text's origin, all normalized. Immutable, so
+     * copies of a Text share it and moving a Text only moves its origin.
+     */
+    static final class TextLayout {
+        final int fontSize;
+        final float roomWidth;
+        final float textSize;
+        final String[] lines;
+        final float[] baselines;
+        final RectF bounds = new RectF();
+
+        // Measured at the room's pixel size, hinting makes tiny text sizes inaccurate
+        TextLayout(String text, int fontSize, float roomWidth, Paint paint) {
+            this.fontSize = fontSize;
+            this.roomWidth = roomWidth;
+            this.textSize = normalize(fontSize, roomWidth);
+            this.lines = text.split("\n", -1);
+            this.baselines = new float[lines.length];
+
+            paint.setTextSize(fontSize);
+            Paint.FontMetrics metrics = paint.getFontMetrics();
+            float spacing = paint.getFontSpacing();
+            float width = 0f;
+            for (int i = 0; i < lines.length; i++) {
+                baselines[i] = normalize(i * spacing, roomWidth);
+                width = Math.max(width, paint.measureText(lines[i]));
+            }
+            bounds.set(0f,
+                    normalize(metrics.top, roomWidth),
+                    normalize(width, roomWidth),
+                    baselines[lines.length - 1] + normalize(metrics.bottom, roomWidth));
+            paint.setTextSize(textSize);
         }
     }
 
@@ -359,42 +620,54 @@ public class AnnotationView extends View {
         public float x;
         public float y;
         public String text;
+        // Rebuilt only when the font size or the room width change
+        TextLayout layout;
 
-        public Text(JSONObject annotation, JSONObject roomDimensions) throws JSONException {
-            super(annotation, roomDimensions);
-            text = annotation.getString("text");
+        public Text(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            super(annotation, roomWidth, roomHeight);
         }
 
-        @Override
-        public void updateValues(JSONObject annotation, JSONObject roomDimensions) throws JSONException {
-            PointF currentPointT = new PointF(
-                    Double.valueOf(annotation.getDouble("x")).floatValue(),
-                    Double.valueOf(annotation.getDouble("y")).floatValue()
-            );
-            PointF scaledPointT = scaleCoord(currentPointT, roomDimensions);
+        Text(Text other) {
+            super(other);
+            this.fontSize = other.fontSize;
+            this.x = other.x;
+            this.y = other.y;
+            this.text = other.text;
+            this.layout = other.layout;
+        }
 
-            fontSize = getFontSize(annotation);
-            x = scaledPointT.x;
-            y = scaledPointT.y;
+        @Override
+        Shape copy() {
+            return new Text(this);
         }
 
         @Override
-        public void onDraw(Canvas canvas, Paint p) {
-            super.onDraw(canvas, p);
+        public void updateValues(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+            // The text itself is only sent with the ADD, runs from the super constructor
+            if (text == null) {
+                text = annotation.text == null ? "" : annotation.text;
+                shapePaint.setStyle(Paint.Style.FILL_AND_STROKE);
+            }
+            fontSize = annotation.fontSize;
+            x = normalize(annotation.x, roomWidth);
+            y = normalize(annotation.y, roomWidth);
+            float outset = updateStroke(roomWidth);
 
-            p.setTextSize(fontSize);
-            p.setStyle(Paint.Style.FILL_AND_STROKE);
-            canvas.drawText(text, x, y, p);
-            p.setStyle(Paint.Style.STROKE);
+            if (layout == null || layout.fontSize != fontSize || layout.roomWidth != roomWidth) {
+                layout = new TextLayout(text, fontSize, roomWidth, shapePaint);
+            }
+            bounds.set(layout.bounds);
+            bounds.offset(x, y);
+            bounds.inset(-outset, -outset);
         }
 
-        private int getFontSize(JSONObject annotation) throws JSONException {
-            int fontSize = annotation.optInt("fontSize");
-            if (fontSize == 0) {
-                String fontSizeS = annotation.getString("fontSize");
-                fontSize = Integer.parseInt(fontSizeS.substring(0, fontSizeS.indexOf("p")));
+        @Override
+        public void onDraw(Canvas canvas) {
+            String[] lines = layout.lines;
+            float[] baselines = layout.baselines;
+            for (int i = 0; i < lines.length; i++) {
+                canvas.drawText(lines[i], x, y + baselines[i], shapePaint);
             }
-            return fontSize;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,154 @@
+package io.orcana;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/*
+ * App wide pool of mutable bitmaps that are no longer on screen, so screenshots, screenshot
+ * tiles and QR codes can be decoded or drawn into an existing allocation instead of a new one.
+ * On headsets with 2-3GB of RAM every full screenshot allocated is a GC pause waiting to happen.
+ *
+ * Bitmaps are bucketed by the power of two above their allocation size. A request is served
+ * from its own bucket or the one above it, so a small tile never pins a full screenshot. The
+ * pooled bitmaps are limited to a byte budget, once over it the largest ones are dropped first,
+ * since that frees the most for the fewest future misses. trimMemory() shrinks the pool when the
+ * system asks for memory back, it fills up again as bitmaps are released.
+ *
+ * Dropped bitmaps are left to the garbage collector rather than recycled: a bitmap the screenshot
+ * view has just let go of may still be referenced by the frame the render thread is drawing.
+ *
+ * Only bitmaps nobody else references may be released into the pool. Thread safe.
+ */
+final class BitmapPool {
+    private static final int MAX_BUDGET_BYTES = 24 * 1024 * 1024;
+    private static final int BUCKETS = 32;
+
+    private static final BitmapPool shared =
+            new BitmapPool((int) Math.min(MAX_BUDGET_BYTES, Runtime.getRuntime().maxMemory() / 16));
+
+    static BitmapPool shared() {
+        return shared;
+    }
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Bitmap>[] buckets = new ArrayDeque[BUCKETS];
+    private final int maxBytes;
+    private long pooledBytes;
+    private long hits;
+    private long misses;
+
+    BitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+    }
+
+    /*
+     * A pooled bitmap of at least byteCount bytes, for BitmapFactory.Options.inBitmap, or null.
+     * Its size, config and contents are whatever they were when it was released.
+     */
+    @Nullable
+    synchronized Bitmap take(int byteCount) {
+        int bucket = bucket(byteCount);
+        for (int i = bucket; i <= bucket + 1 && i < BUCKETS; i++) {
+            for (Bitmap bitmap : buckets[i]) {
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    buckets[i].remove(bitmap);
+                    pooledBytes -= bitmap.getAllocationByteCount();
+                    hits++;
+                    return bitmap;
+                }
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    // A mutable width x height bitmap, pooled or new. Its pixels are undefined.
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width * height * bytesPerPixel(config));
+        if (bitmap != null) {
+            try {
+                bitmap.reconfigure(width, height, config);
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                // Not reconfigurable after all, leave it to the garbage collector
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    void release(@Nullable Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int byteCount = bitmap.getAllocationByteCount();
+        synchronized (this) {
+            if (byteCount > maxBytes) {
+                return;
+            }
+            ArrayDeque<Bitmap> bucket = buckets[bucket(byteCount)];
+            if (bucket.contains(bitmap)) {
+                return;
+            }
+            bucket.add(bitmap);
+            pooledBytes += byteCount;
+            trimToSize(maxBytes);
+        }
+    }
+
+    // For ComponentCallbacks2.onTrimMemory()
+    synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxBytes / 2);
+        }
+    }
+
+    synchronized void clear() {
+        trimToSize(0);
+    }
+
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.printf("bitmap pool %d/%d bytes, %d hits, %d misses%n", pooledBytes, maxBytes, hits, misses);
+    }
+
+    // Holds the lock
+    private void trimToSize(long bytes) {
+        for (int i = BUCKETS - 1; i >= 0 && pooledBytes > bytes; i--) {
+            ArrayDeque<Bitmap> bucket = buckets[i];
+            while (!bucket.isEmpty() && pooledBytes > bytes) {
+                pooledBytes -= bucket.poll().getAllocationByteCount();
+            }
+        }
+    }
+
+    private static int bucket(int byteCount) {
+        return byteCount <= 1 ? 0 : Math.min(BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(byteCount - 1));
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -16,6 +16,11 @@ import com.twilio.video.app.R;
 import timber.log.Timber;
 
 public class CursorView extends View {
+    public interface CursorListener {
+        // x and y are normalized to the view
+        void onCursorMoved(float x, float y);
+    }
+
     static final double clickWait = 5000.0d; // In milliseconds
     public static final double resetTimeOffset = (clickWait/1000.0d) + 1.0d;
 
@@ -35,6 +40,7 @@ public class CursorView extends View {
     double lastUpdate;
 //    double resetCursorTimeStamp;
     IButtonManager buttonManager;
+    CursorListener cursorListener;
 
     public CursorView(Context context) {
         this(context, null, 0);
@@ -81,6 +87,10 @@ public class CursorView extends View {
         this.buttonManager = bm;
     }
 
+    public void setCursorListener(CursorListener listener) {
+        this.cursorListener = listener;
+    }
+
     @Override
     protected void onDraw(Canvas c) {
         super.onDraw(c);
@@ -153,6 +163,10 @@ public class CursorView extends View {
                 this.x = newCursorPoint.x;
                 this.y = newCursorPoint.y;
                 invalidate();
+
+                if (this.cursorListener != null && getWidth() > 0 && getHeight() > 0) {
+                    this.cursorListener.onCursorMoved(this.x / getWidth(), this.y / getHeight());
+                }
             }
         });
     }
@@ -0,0 +1,176 @@
+package io.orcana;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import timber.log.Timber;
+
+/*
+ * Optional compressed envelope around a data track message, using the AnnotationCodec framing:
+ *
+ *   byte     magic     0xA7
+ *   byte     version   VERSION_COMPRESSED
+ *   byte     flags     FLAG_TEXT when the payload is a JSON message, else a binary frame,
+ *                      FLAG_CONTROL or FLAG_ANNOTATION for the lane JSON is queued in
+ *   varint   inflated length
+ *   zlib stream, DEFLATE with DICTIONARY as the preset dictionary
+ *
+ * Annotation JSON repeats the same keys and values in every message, so even a small message
+ * compresses well against the dictionary, and base64 screenshots shrink by about a quarter.
+ *
+ * Senders only compress once the headset has announced CAPABILITY_DEFLATE (see
+ * DataTrackPublisher). Uncompressed messages are always accepted, so older consoles keep working
+ * and a console that missed the announcement simply keeps sending plain messages.
+ *
+ * Messages are inflated when their sender gets to them, not as they arrive, so the JSON type
+ * cannot pick the lane. The console sets the lane flag instead: without one, JSON is queued in
+ * the bulk lane, binary frames are always annotations.
+ *
+ * Each DataTrackSender owns one, its Inflater is reused until release().
+ */
+final class DataTrackCompression {
+    static final byte VERSION_COMPRESSED = 0x03;
+    static final byte FLAG_TEXT = 0x01;
+    static final byte FLAG_CONTROL = 0x02;
+    static final byte FLAG_ANNOTATION = 0x04;
+
+    // Capability bit announced in the publisher's capabilities record
+    static final int CAPABILITY_DEFLATE = 0x01;
+
+    // Larger than any screenshot we expect, guards against inflating a corrupt length
+    static final int MAX_INFLATED_BYTES = 8 * 1024 * 1024;
+
+    /*
+     * Shared with the console. zlib favours the end of the dictionary, so the most common
+     * strings come last. Changing it breaks every console that compresses against it, the
+     * Adler-32 of the dictionary in each stream catches a mismatch.
+     */
+    static final byte[] DICTIONARY = (
+            "\"caseCreatorSid\":\"\"pinnedParticipantSid\":\"\"identity\":\"\"action\":\""
+            + "{\"type\":\"ADMIN\",\"preview\":\"\"tileSize\":\"tile\":\"total\":\"data\":\""
+            + "{\"type\":\"SCREENSHOT_TILE\",{\"type\":\"SCREENSHOT_CHUNK\","
+            + "{\"type\":\"UPDATE_SCREENSHOT\",\"screenshot\":{\"src\":\"data:image/jpeg;base64,/9j/"
+            + "{\"type\":\"RESTART_ANNOTATION\"}{\"type\":\"ANNOTATION_SNAPSHOT\",\"annotations\":["
+            + "\"transform\":\"translate(\"text\":\"\"fontSize\":\"px\","
+            + "\"category\":\"text\",\"category\":\"line\",\"x1\":\"y1\":\"x2\":\"y2\":"
+            + "\"category\":\"rect\",\"x\":\"y\":\"width\":\"height\":"
+            + "\"category\":\"circle\",\"cx\":\"cy\":\"r\":"
+            + "\"category\":\"stroke\",\"points\":["
+            + "\"color\":\"#ff0000\",\"color\":\"#"
+            + "{\"type\":\"REMOVE_ANNOTATION\",{\"type\":\"ADD_ANNOTATION\","
+            + "{\"type\":\"UPDATE_ANNOTATION\",{\"type\":\"APPEND_POINTS\","
+            + "\"version\":\"roomDimensions\":{\"width\":\"height\":}"
+            + "\"annotation\":{\"id\":\",\"seq\":")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private Inflater inflater = new Inflater();
+
+    static boolean isCompressed(ByteBuffer buffer) {
+        return AnnotationCodec.isBinaryFrame(buffer)
+                && buffer.get(buffer.position() + 1) == VERSION_COMPRESSED;
+    }
+
+    static boolean isText(ByteBuffer buffer) {
+        return (buffer.get(buffer.position() + 2) & FLAG_TEXT) != 0;
+    }
+
+    static int lane(ByteBuffer buffer) {
+        int flags = buffer.get(buffer.position() + 2);
+        if ((flags & FLAG_TEXT) == 0 || (flags & FLAG_ANNOTATION) != 0) {
+            return DataTrackSender.LANE_ANNOTATION;
+        }
+        return (flags & FLAG_CONTROL) != 0 ? DataTrackSender.LANE_CONTROL : DataTrackSender.LANE_BULK;
+    }
+
+    /*
+     * Returns the inflated payload, or null if the envelope is malformed or was compressed
+     * against a different dictionary. Does not consume the buffer.
+     */
+    @Nullable
+    synchronized ByteBuffer inflate(ByteBuffer envelope) {
+        if (inflater == null) {
+            return null;
+        }
+        ByteBuffer buffer = envelope.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            buffer.position(buffer.position() + 3);
+            int length = AnnotationCodec.readVarInt(buffer);
+            if (length < 0 || length > MAX_INFLATED_BYTES) {
+                Timber.w("Dropping compressed message of %d bytes", length);
+                return null;
+            }
+            byte[] input = new byte[buffer.remaining()];
+            buffer.get(input);
+            byte[] output = new byte[length];
+
+            inflater.reset();
+            inflater.setInput(input);
+            int inflated = inflater.inflate(output);
+            if (inflated == 0 && inflater.needsDictionary()) {
+                inflater.setDictionary(DICTIONARY);
+                inflated = inflater.inflate(output);
+            }
+            if (inflated != length || !inflater.finished()) {
+                Timber.w("Compressed message inflated to %d bytes instead of %d", inflated, length);
+                return null;
+            }
+            return ByteBuffer.wrap(output);
+        } catch (DataFormatException | IllegalArgumentException | BufferUnderflowException e) {
+            Timber.e(e, "Malformed compressed message");
+            return null;
+        }
+    }
+
+    synchronized void release() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    // What a console sends, kept here for tests and tools
+    static ByteBuffer compress(byte[] payload, boolean text) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(payload);
+            deflater.finish();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(payload.length / 2 + 16);
+            byte[] chunk = new byte[1024];
+            while (!deflater.finished()) {
+                stream.write(chunk, 0, deflater.deflate(chunk));
+            }
+
+            ByteBuffer envelope = ByteBuffer.allocate(8 + stream.size()).order(ByteOrder.LITTLE_ENDIAN);
+            envelope.put(AnnotationCodec.MAGIC);
+            envelope.put(VERSION_COMPRESSED);
+            envelope.put(text ? flags(payload) : 0);
+            AnnotationCodec.writeVarInt(envelope, payload.length);
+            envelope.put(stream.toByteArray());
+            envelope.flip();
+            return envelope;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte flags(byte[] payload) {
+        String type = DataTrackMessageParser.peekType(new String(payload, StandardCharsets.UTF_8));
+        switch (DataTrackSender.lane(type)) {
+            case DataTrackSender.LANE_CONTROL:
+                return FLAG_TEXT | FLAG_CONTROL;
+            case DataTrackSender.LANE_ANNOTATION:
+                return FLAG_TEXT | FLAG_ANNOTATION;
+            default:
+                return FLAG_TEXT;
+        }
+    }
+}
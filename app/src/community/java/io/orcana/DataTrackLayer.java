@@ -1,70 +1,179 @@
 package io.orcana;
 
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
 import android.widget.ImageView;
+import android.widget.TextView;
 
 import com.twilio.video.RemoteDataTrack;
 import com.twilio.video.RemoteDataTrackPublication;
 import com.twilio.video.RemoteParticipant;
 import com.twilio.video.Room;
+import com.twilio.video.app.data.Preferences;
 import com.twilio.video.app.participant.ParticipantManager;
 import com.twilio.video.app.ui.room.RoomActivity;
 import com.twilio.video.app.ui.room.RoomEvent;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.twilio.video.app.databinding.RoomActivityBinding;
 
+import androidx.annotation.Nullable;
+import androidx.preference.PreferenceManager;
+
 import org.jetbrains.annotations.NotNull;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import timber.log.Timber;
 
 public class DataTrackLayer {
     private static final String DATA_TRACK_MESSAGE_THREAD_NAME = "DataTrackMessages";
+    private static final String DATA_TRACK_SENDER_THREAD_NAME = "DataTrackSender";
+    private static final int DATA_TRACK_SENDER_THREADS = 2;
+    private static final long STATS_REFRESH_MILLIS = 1000;
+    private static final String RECORDING_DIRECTORY = "datatrack";
+    private static final String RECORDING_SUFFIX = ".dtr";
+    // Recordings kept on the device, including the one being written, and the size of each
+    private static final int MAX_RECORDINGS = 5;
+    private static final long MAX_RECORDING_BYTES = 64 * 1024 * 1024;
 
     private Room room;
-    private final OTWrapper orcana;
-    private final RoomActivity roomActivity;
+    // Null when the layer is built for replaying recordings
+    @Nullable private final OTWrapper orcana;
+    @Nullable private final RoomActivity roomActivity;
+    @Nullable private final RoomActivityBinding binding;
 
-    private final RoomActivityBinding binding;
     private final ImageView screenshotView;
     private final AnnotationView annotationView;
+    private final AnnotationCoalescer annotationCoalescer;
+    private final ScreenshotDecoder screenshotDecoder;
+    private final AdminCommands adminCommands = new AdminCommands();
+    private final DataTrackPublisher dataTrackPublisher;
+    // Version of the last annotation snapshot applied, -1 until a versioned message arrives
+    private final AtomicLong annotationVersion = new AtomicLong(-1);
+    private final AnnotationSequencer annotationSequencer = new AnnotationSequencer();
+    private final DataTrackMetrics metrics = new DataTrackMetrics();
+    private final TextView statsText;
 
     // Dedicated thread and handler for messages received from a RemoteDataTrack
-    private final HandlerThread dataTrackMessageThread =
-            new HandlerThread(DATA_TRACK_MESSAGE_THREAD_NAME);
+    @Nullable private final HandlerThread dataTrackMessageThread;
     private final Handler dataTrackMessageThreadHandler;
 
-    // Map used to map remote data tracks to remote participants
-//    private final Map<RemoteDataTrack, RemoteParticipant> dataTrackRemoteParticipantMap =
-//            new HashMap<>();
+    // Senders' messages are processed here, each sender in order but in parallel to the others
+    private final Executor dataTrackSenderExecutor;
+
+    // Map used to map remote data tracks to the participants sending on them
+    private final Map<RemoteDataTrack, DataTrackSender> dataTrackSenders = new ConcurrentHashMap<>();
+    // Senders of replayed recordings, by identity
+    private final Map<String, DataTrackSender> replaySenders = new ConcurrentHashMap<>();
+
+    @Nullable private volatile DataTrackRecorder recorder;
 
     public DataTrackLayer(OTWrapper otWrapper, RoomActivity roomActivity, RoomActivityBinding binding) {
+        this(otWrapper, roomActivity, binding, binding.annotationView, binding.screenshotView,
+                binding.dataTrackStatsText, new HandlerThread(DATA_TRACK_MESSAGE_THREAD_NAME),
+                DataTrackSender.newExecutor(DATA_TRACK_SENDER_THREADS, DATA_TRACK_SENDER_THREAD_NAME));
+    }
+
+    // Just the message pipeline, for replaying recordings. Without a thread of its own all the
+    // work posted to a handler runs on the main looper.
+    DataTrackLayer(AnnotationView annotationView, ImageView screenshotView, TextView statsText,
+                   Executor senderExecutor) {
+        this(null, null, null, annotationView, screenshotView, statsText, null, senderExecutor);
+    }
+
+    private DataTrackLayer(@Nullable OTWrapper otWrapper, @Nullable RoomActivity roomActivity,
+                           @Nullable RoomActivityBinding binding, AnnotationView annotationView,
+                           ImageView screenshotView, TextView statsText,
+                           @Nullable HandlerThread messageThread, Executor senderExecutor) {
         this.orcana = otWrapper;
         this.roomActivity = roomActivity;
 
         this.binding = binding;
-        this.annotationView = binding.annotationView;
-        this.screenshotView = binding.screenshotView;
+        this.annotationView = annotationView;
+        this.screenshotView = screenshotView;
+        this.screenshotDecoder = new ScreenshotDecoder(screenshotView);
+        this.statsText = statsText;
+        this.dataTrackSenderExecutor = senderExecutor;
+        if (binding != null) {
+            registerAdminCommands();
+        }
+        if (roomActivity != null) {
+            roomActivity.getApplicationContext().registerComponentCallbacks(memoryCallbacks);
+        }
 
         // Start the thread where data messages are received
-        dataTrackMessageThread.start();
-        dataTrackMessageThreadHandler = new Handler(dataTrackMessageThread.getLooper());
+        dataTrackMessageThread = messageThread;
+        if (dataTrackMessageThread != null) {
+            dataTrackMessageThread.start();
+            dataTrackMessageThreadHandler = new Handler(dataTrackMessageThread.getLooper());
+        } else {
+            dataTrackMessageThreadHandler = new Handler(Looper.getMainLooper());
+        }
+
+        // Feedback to the console is batched on the data track thread
+        this.dataTrackPublisher = new DataTrackPublisher(dataTrackMessageThreadHandler);
+
+        // Annotation changes are applied on the data track thread and published once per frame
+        this.annotationCoalescer = new AnnotationCoalescer(annotationView, dataTrackMessageThreadHandler, metrics);
     }
 
     public void onDestroy() {
+        if (roomActivity != null) {
+            roomActivity.getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
+        }
         disconnectFromRoom();
+        annotationCoalescer.release();
+        screenshotDecoder.release();
 
-        // Quit the data track message thread
-        dataTrackMessageThread.quit();
+        // Quit the data track message thread once the local data track has been unpublished
+        if (dataTrackMessageThread != null) {
+            dataTrackMessageThread.quitSafely();
+        }
+        if (dataTrackSenderExecutor instanceof ExecutorService) {
+            ((ExecutorService) dataTrackSenderExecutor).shutdownNow();
+        }
     }
 
     public void connected(RoomEvent.Connected connectedEvent){
 //        Timber.d("Start sending messages?");
 
         this.room = connectedEvent.getRoom();
+        adminCommands.setLocalParticipant(room.getLocalParticipant().getIdentity(),
+                room.getLocalParticipant().getSid());
+        dataTrackPublisher.publish(roomActivity, room.getLocalParticipant());
+
+        // Each room connection is measured on its own
+        metrics.reset();
+        statsText.setVisibility(View.VISIBLE);
+        statsText.removeCallbacks(refreshStats);
+        statsText.post(refreshStats);
+
+        // Recordings may hold patient data, so they are opt-in and never made in production
+        if (!OTWrapper.production && roomActivity != null
+                && PreferenceManager.getDefaultSharedPreferences(roomActivity).getBoolean(
+                        Preferences.RECORD_DATA_TRACKS, Preferences.RECORD_DATA_TRACKS_DEFAULT)) {
+            startRecording();
+        }
 
         for (RemoteParticipant rp : room.getRemoteParticipants()) {
             addRemoteParticipant(rp);
@@ -92,8 +201,8 @@ public class DataTrackLayer {
             Timber.d("Could not find remote participant with SID %s", remoteParticipantDisconnected.getSid());
         } else {
             Timber.d("%s disconnected", remoteParticipant.getIdentity());
-//            removeRemoteParticipant(remoteParticipant);
         }
+        removeDataTrackSenders(remoteParticipantDisconnected.getSid());
     }
 
     public void onDataTrackSubscribed(RoomEvent.RemoteParticipantEvent.OnDataTrackSubscribed OnDataTrackSubscribedData) {
@@ -104,7 +213,36 @@ public class DataTrackLayer {
         dataTrackMessageThreadHandler.post(() -> addRemoteDataTrack(OnDataTrackSubscribedData.getRemoteParticipant(), OnDataTrackSubscribedData.getRemoteDataTrack()));
     }
 
+    // Normalized cursor position, sent to the console with the next batch
+    public void cursorMoved(float x, float y) {
+        dataTrackPublisher.cursorMoved(x, y);
+    }
+
+    // Text report of the data track traffic, for Activity.dump()
+    public void dump(String prefix, PrintWriter writer) {
+        metrics.dump(prefix, writer);
+        for (DataTrackSender sender : dataTrackSenders.values()) {
+            writer.print(prefix);
+            writer.printf("%s: %d received, %d dropped, %d rate limited%n", sender.identity,
+                    sender.getReceivedMessages(), sender.getDroppedMessages(),
+                    sender.getRateLimitedMessages());
+        }
+        writer.print(prefix);
+        writer.printf("coalesced %d, out of order %d%n", annotationCoalescer.getCoalescedCount(),
+                annotationSequencer.getDroppedCount());
+        BitmapPool.shared().dump(prefix, writer);
+    }
+
     public void disconnectFromRoom() {
+        statsText.removeCallbacks(refreshStats);
+        statsText.setVisibility(View.GONE);
+        stopRecording();
+        dataTrackPublisher.unpublish();
+        removeDataTrackSenders(null);
+        annotationVersion.set(-1);
+        annotationSequencer.clear();
+        annotationCoalescer.restart();
+        screenshotDecoder.clearCache();
         annotationView.disconnectedFromRoom();
     }
 
@@ -122,117 +260,335 @@ public class DataTrackLayer {
         }
     }
 
-//    private void removeRemoteParticipant(RemoteParticipant remoteParticipant) {
-//        // Clear the drawing of the remote participant
-////        collaborativeDrawingView.clear(remoteParticipant);
-//    }
+    // Drops the senders, and whatever they still had queued, of one participant or of everyone
+    private void removeDataTrackSenders(@Nullable String sid) {
+        removeDataTrackSenders(dataTrackSenders.values().iterator(), sid);
+        removeDataTrackSenders(replaySenders.values().iterator(), sid);
+    }
+
+    private static void removeDataTrackSenders(Iterator<DataTrackSender> iterator, @Nullable String sid) {
+        while (iterator.hasNext()) {
+            DataTrackSender sender = iterator.next();
+            if (sid == null || sid.equals(sender.sid)) {
+                iterator.remove();
+                int dropped = sender.release();
+                if (dropped > 0) {
+                    Timber.d("Dropped %d queued messages from %s", dropped, sender.identity);
+                }
+            }
+        }
+    }
 
     private void addRemoteDataTrack(RemoteParticipant remoteParticipant,
                                     RemoteDataTrack remoteDataTrack) {
-//        dataTrackRemoteParticipantMap.put(remoteDataTrack, remoteParticipant);
-        remoteDataTrack.setListener(remoteDataTrackListener());
+        if (!dataTrackSenders.containsKey(remoteDataTrack)) {
+            dataTrackSenders.put(remoteDataTrack,
+                    newDataTrackSender(remoteParticipant.getIdentity(), remoteParticipant.getSid(),
+                            DataTrackSender.RateLimits.DEFAULT));
+            // The new participant missed the announcement made when we published
+            dataTrackPublisher.announceCapabilities();
+        }
+        remoteDataTrack.setListener(remoteDataTrackListener);
+    }
+
+    private DataTrackSender newDataTrackSender(String identity, String sid,
+                                               DataTrackSender.RateLimits rateLimits) {
+        // Screenshot chunks are reassembled per sender, on that sender's queue
+        ScreenshotAssembler screenshotAssembler = new ScreenshotAssembler(screenshotListener);
+        return new DataTrackSender(identity, sid, dataTrackSenderExecutor,
+                messageHandler(screenshotAssembler, sid), metrics, rateLimits);
+    }
+
+    /*
+     * One file per connection for DataTrackReplayer, in app-private storage (adb shell run-as on
+     * a debug build to pull them). Only the latest MAX_RECORDINGS are kept.
+     */
+    private void startRecording() {
+        stopRecording();
+        File directory = new File(roomActivity.getFilesDir(), RECORDING_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Timber.w("No storage to record data tracks to");
+            return;
+        }
+        deleteOldRecordings(directory);
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + RECORDING_SUFFIX;
+        try {
+            recorder = DataTrackRecorder.open(new File(directory, name), MAX_RECORDING_BYTES);
+            Timber.d("Recording data tracks to %s", name);
+        } catch (IOException e) {
+            Timber.e(e, "Could not record data tracks");
+        }
     }
 
-    private RemoteDataTrack.Listener remoteDataTrackListener() {
-        return new RemoteDataTrack.Listener() {
+    // Makes room for one more recording, names start with their date so they sort by age
+    private static void deleteOldRecordings(File directory) {
+        File[] recordings = directory.listFiles((dir, name) -> name.endsWith(RECORDING_SUFFIX));
+        if (recordings == null) {
+            return;
+        }
+        Arrays.sort(recordings);
+        for (int i = 0; i <= recordings.length - MAX_RECORDINGS; i++) {
+            if (!recordings[i].delete()) {
+                Timber.w("Could not delete data track recording %s", recordings[i].getName());
+            }
+        }
+    }
+
+    private void stopRecording() {
+        DataTrackRecorder stopped = recorder;
+        recorder = null;
+        if (stopped != null) {
+            stopped.close();
+        }
+    }
+
+    // Screenshots and pooled bitmaps are the bulk of what we can give back under memory pressure
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            Timber.d("Trimming screenshot memory, level %d", level);
+            screenshotDecoder.trimMemory(level);
+            BitmapPool.shared().trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(@NotNull Configuration configuration) {
+        }
+    };
+
+    // Feeds recorded messages through the same senders and handler as live ones
+    final DataTrackReplayer.Target replayTarget = new DataTrackReplayer.Target() {
+        @Override
+        public void replay(String identity, String sid, String message) {
+            replaySender(identity, sid).post(message);
+        }
+
+        @Override
+        public void replay(String identity, String sid, ByteBuffer message) {
+            replaySender(identity, sid).post(message);
+        }
+
+        private DataTrackSender replaySender(String identity, String sid) {
+            DataTrackSender sender = replaySenders.get(identity);
+            if (sender == null) {
+                // Not limited, or a recorded storm would not replay the way it was received
+                sender = newDataTrackSender(identity, sid, DataTrackSender.RateLimits.UNLIMITED);
+                replaySenders.put(identity, sender);
+            }
+            return sender;
+        }
+    };
+
+    private final RemoteDataTrack.Listener remoteDataTrackListener = new RemoteDataTrack.Listener() {
+        @Override
+        public void onMessage(@NotNull RemoteDataTrack remoteDataTrack, @NotNull ByteBuffer byteBuffer) {
+            DataTrackSender sender = dataTrackSenders.get(remoteDataTrack);
+            if (sender == null) {
+                Timber.w("Dropping message from an unknown data track");
+                return;
+            }
+            DataTrackRecorder activeRecorder = recorder;
+            if (activeRecorder != null) {
+                activeRecorder.record(sender.identity, sender.sid, byteBuffer);
+            }
+            sender.post(byteBuffer);
+        }
+
+        @Override
+        public void onMessage(@NotNull RemoteDataTrack remoteDataTrack, @NotNull String message) {
+            DataTrackSender sender = dataTrackSenders.get(remoteDataTrack);
+            if (sender == null) {
+                Timber.w("Dropping message from an unknown data track");
+                return;
+            }
+            Timber.d("onMessage from %s: %s", sender.identity, message);
+            DataTrackRecorder activeRecorder = recorder;
+            if (activeRecorder != null) {
+                activeRecorder.record(sender.identity, sender.sid, message);
+            }
+            sender.post(message);
+        }
+    };
+
+    private final ScreenshotAssembler.Listener screenshotListener = new ScreenshotAssembler.Listener() {
+        @Override
+        public void onPreview(String src) {
+            screenshotDecoder.decode(src);
+        }
+
+        @Override
+        public void onScreenshot(String[] parts) {
+            screenshotDecoder.decode(parts);
+        }
+    };
+
+    private DataTrackMessageHandler messageHandler(ScreenshotAssembler screenshotAssembler, String sid) {
+        return new DataTrackMessageHandler() {
+            @Override
+            public void addAnnotation(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+                if (annotationSequencer.accept(annotation.id, annotation.seq)) {
+                    annotationCoalescer.add(annotation, roomWidth, roomHeight);
+                } else {
+                    metrics.dropped(DataTrackMessageParser.ADD_ANNOTATION);
+                }
+            }
+
+            @Override
+            public void updateAnnotation(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+                if (annotationSequencer.accept(annotation.id, annotation.seq)) {
+                    annotationCoalescer.update(annotation, roomWidth, roomHeight);
+                } else {
+                    metrics.dropped(DataTrackMessageParser.UPDATE_ANNOTATION);
+                }
+            }
+
+            @Override
+            public void appendPoints(AnnotationRecord annotation, float roomWidth, float roomHeight) {
+                // A late append is dropped rather than reordered, the stroke keeps a gap
+                if (annotationSequencer.accept(annotation.id, annotation.seq)) {
+                    annotationCoalescer.append(annotation, roomWidth, roomHeight);
+                } else {
+                    metrics.dropped(DataTrackMessageParser.APPEND_POINTS);
+                }
+            }
+
             @Override
-            public void onMessage(@NotNull RemoteDataTrack remoteDataTrack, @NotNull ByteBuffer byteBuffer) {
+            public void removeAnnotation(String id, long seq) {
+                if (annotationSequencer.accept(id, seq)) {
+                    annotationCoalescer.remove(id);
+                } else {
+                    metrics.dropped(DataTrackMessageParser.REMOVE_ANNOTATION);
+                }
+            }
 
+            @Override
+            public void restartAnnotation() {
+                annotationSequencer.clear();
+                annotationCoalescer.restart();
             }
 
             @Override
-            public void onMessage(@NotNull RemoteDataTrack remoteDataTrack, @NotNull String message) {
-                Timber.d("onMessage: %s", message);
-                parserJson(message);
+            public void annotationSnapshot(long version, List<AnnotationRecord> annotations,
+                                           float roomWidth, float roomHeight) {
+                // A snapshot of the version we are at is still applied, it may fill in lost deltas
+                if (version >= 0 && !advanceAnnotationVersion(version)) {
+                    Timber.d("Dropping stale annotation snapshot version %d", version);
+                    metrics.dropped(DataTrackMessageParser.ANNOTATION_SNAPSHOT);
+                    return;
+                }
+                annotationSequencer.reset(annotations);
+                annotationCoalescer.snapshot(annotations, roomWidth, roomHeight);
+            }
+
+            @Override
+            public boolean acceptsAnnotationVersion(long version) {
+                // Deltas may arrive out of order, per-shape sequence numbers sort those out
+                return version > annotationVersion.get();
+            }
+
+            @Override
+            public void updateScreenshot(@Nullable String id, @Nullable String src) {
+                screenshotAssembler.clear();
+                if (id != null && src != null) {
+                    screenshotDecoder.decode(ScreenshotCache.idKey(sid, id), new String[] { src });
+                } else {
+                    screenshotDecoder.decode(src);
+                }
+            }
+
+            @Override
+            public void showScreenshot(String id) {
+                screenshotAssembler.clear();
+                // Evicted or never received, ask the console to send it again
+                screenshotDecoder.show(ScreenshotCache.idKey(sid, id),
+                        () -> dataTrackPublisher.screenshotMissing(id));
+            }
+
+            @Override
+            public void screenshotChunk(String id, int seq, int total, String data, @Nullable String preview) {
+                screenshotAssembler.addChunk(id, seq, total, data, preview, SystemClock.uptimeMillis());
+            }
+
+            @Override
+            public void screenshotTile(int frameWidth, int frameHeight, int tileSize, int tile, String src) {
+                screenshotDecoder.decodeTile(frameWidth, frameHeight, tileSize, tile, src);
+            }
+
+            @Override
+            public boolean acceptsAdmin(String action, @Nullable String identity) {
+                return adminCommands.accepts(action, identity);
+            }
+
+            @Override
+            public void admin(AdminMessage message) {
+                if (adminCommands.execute(message)) {
+                    dataTrackPublisher.acknowledge(message.action);
+                }
             }
         };
     }
 
-    private void parserJson(String json) {
-        try {
-            JSONObject annotationWrapperJsonObject = new JSONObject(json);
-            String annotationAction = annotationWrapperJsonObject.getString("type");
-
-            switch (annotationAction) {
-                case "ADD_ANNOTATION":
-                    annotationView.addShape(annotationWrapperJsonObject.getJSONObject("annotation"),
-                            annotationWrapperJsonObject.getJSONObject("roomDimensions"));
-                    break;
-                case "UPDATE_ANNOTATION":
-                    annotationView.updateShape(annotationWrapperJsonObject.getJSONObject("annotation"),
-                            annotationWrapperJsonObject.getJSONObject("roomDimensions"));
-                    break;
-                case "REMOVE_ANNOTATION":
-                    annotationView.removeShape(annotationWrapperJsonObject.getJSONObject("annotation"));
-                    break;
-                case "RESTART_ANNOTATION":
-                    annotationView.clearShapes();
-                    break;
-                case "UPDATE_SCREENSHOT":
-                    annotationView.handleScreenshot(annotationWrapperJsonObject.getJSONObject("screenshot"), screenshotView);
-                    break;
-                case "ADMIN":
-                    String identity;
-                    String caseCreatorSid;
-                    String action = annotationWrapperJsonObject.getString("action");
-                    switch (action){
-                        case "roomState":
-                            identity = annotationWrapperJsonObject.getString("identity");
-                            if(!identity.equals(room.getLocalParticipant().getIdentity())){
-                                break;
-                            }
-                            caseCreatorSid = annotationWrapperJsonObject.getString("caseCreatorSid");
-                            if(annotationWrapperJsonObject.has("pinnedParticipantSid")){
-                                String pinnedParticipantSid = annotationWrapperJsonObject.getString("pinnedParticipantSid");
-                                pinParticipant(caseCreatorSid, pinnedParticipantSid);
-                            } else {
-                                pinParticipant(caseCreatorSid, caseCreatorSid);
-                            }
-                            break;
-                        case "broadcastSelectedParticipant":
-                            identity = annotationWrapperJsonObject.getString("identity");
-                            caseCreatorSid = annotationWrapperJsonObject.getString("caseCreatorSid");
-                            pinParticipant(caseCreatorSid, identity);
-                            break;
-                        case "mute":
-                            identity = annotationWrapperJsonObject.getString("identity");
-                            if(!identity.equals(room.getLocalParticipant().getIdentity())){
-                                break;
-                            }
-                            this.roomActivity.runOnUiThread(this.binding.localAudio::performClick);
-                            break;
-                        case "disable":
-                            identity = annotationWrapperJsonObject.getString("identity");
-                            if(!identity.equals(room.getLocalParticipant().getIdentity())){
-                                break;
-                            }
-                            this.roomActivity.runOnUiThread(this.binding.localVideo::performClick);
-                            break;
-                        case "kick":
-                            identity = annotationWrapperJsonObject.getString("identity");
-                            if(!identity.equals(room.getLocalParticipant().getIdentity())){
-                                break;
-                            }
-                            this.roomActivity.runOnUiThread(this.binding.disconnectO::performClick);
-                            break;
-                        case "toggle_glasses":
-                            identity = annotationWrapperJsonObject.getString("identity");
-                            if(!identity.equals(room.getLocalParticipant().getIdentity())){
-                                break;
-                            }
-                            this.roomActivity.runOnUiThread(this.orcana::showMenu);
-                            break;
-                    }
-                    break;
-            }
-        } catch (JSONException e) {
-            Timber.e(e);
+    // Refreshes the debug panel in the drawer while connected, formatting only when it is shown
+    private final Runnable refreshStats = new Runnable() {
+        @Override
+        public void run() {
+            if (statsText.isShown()) {
+                StringWriter report = new StringWriter();
+                dump("", new PrintWriter(report));
+                statsText.setText(report.toString());
+            }
+            statsText.postDelayed(this, STATS_REFRESH_MILLIS);
         }
+    };
+
+    // Moves the scene to a newer snapshot version, returns false if it already is past it
+    private boolean advanceAnnotationVersion(long version) {
+        while (true) {
+            long current = annotationVersion.get();
+            if (version < current) {
+                return false;
+            }
+            if (annotationVersion.compareAndSet(current, version)) {
+                return true;
+            }
+        }
+    }
+
+    private void registerAdminCommands() {
+        adminCommands.registerAddressed("roomState", message -> {
+            if (message.caseCreatorSid == null) {
+                return;
+            }
+            if (message.pinnedParticipantSid != null) {
+                pinParticipant(message.caseCreatorSid, message.pinnedParticipantSid);
+            } else {
+                pinParticipant(message.caseCreatorSid, message.caseCreatorSid);
+            }
+        });
+        adminCommands.registerBroadcast("broadcastSelectedParticipant", message -> {
+            if (message.identity == null || message.caseCreatorSid == null) {
+                return;
+            }
+            pinParticipant(message.caseCreatorSid, message.identity);
+        });
+        adminCommands.registerAddressed("mute",
+                message -> roomActivity.runOnUiThread(binding.localAudio::performClick));
+        adminCommands.registerAddressed("disable",
+                message -> roomActivity.runOnUiThread(binding.localVideo::performClick));
+        adminCommands.registerAddressed("kick",
+                message -> roomActivity.runOnUiThread(binding.disconnectO::performClick));
+        adminCommands.registerAddressed("toggle_glasses",
+                message -> roomActivity.runOnUiThread(orcana::showMenu));
     }
 
     private void pinParticipant(String caseCreatorSid, String sidToPin){
         ParticipantManager participantManager = roomActivity.getRoomViewModel().getParticipantManager();
-        if(sidToPin.equals(room.getLocalParticipant().getSid())){
+        if(sidToPin.equals(adminCommands.getLocalSid())){
             participantManager.changePinnedParticipant(caseCreatorSid);
         } else {
             participantManager.changePinnedParticipant(sidToPin);
@@ -0,0 +1,48 @@
+package io.orcana;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+// Receives decoded data track messages, independent of the wire format they arrived in.
+interface DataTrackMessageHandler {
+    void addAnnotation(AnnotationRecord annotation, float roomWidth, float roomHeight);
+
+    void updateAnnotation(AnnotationRecord annotation, float roomWidth, float roomHeight);
+
+    // Only the new points of a stroke, to be added to its end
+    void appendPoints(AnnotationRecord annotation, float roomWidth, float roomHeight);
+
+    // seq is the shape's sequence number, or -1
+    void removeAnnotation(String id, long seq);
+
+    void restartAnnotation();
+
+    // Replaces every shape at once, only valid during the call
+    void annotationSnapshot(long version, List<AnnotationRecord> annotations, float roomWidth, float roomHeight);
+
+    // Asked before a versioned annotation delta is dispatched, stale deltas are dropped
+    default boolean acceptsAnnotationVersion(long version) {
+        return true;
+    }
+
+    // A null src hides the current screenshot. id, when the sender gave one, names it for
+    // showScreenshot.
+    void updateScreenshot(@Nullable String id, @Nullable String src);
+
+    // Shows a screenshot sent earlier with that id again
+    void showScreenshot(String id);
+
+    // One piece of a screenshot split across messages, see ScreenshotAssembler
+    void screenshotChunk(String id, int seq, int total, String data, @Nullable String preview);
+
+    // Replaces one tile of the current screenshot
+    void screenshotTile(int frameWidth, int frameHeight, int tileSize, int tile, String src);
+
+    // Lets the parser stop reading an ADMIN message as soon as it knows it will be ignored
+    default boolean acceptsAdmin(String action, @Nullable String identity) {
+        return true;
+    }
+
+    void admin(AdminMessage message);
+}
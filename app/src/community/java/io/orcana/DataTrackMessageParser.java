@@ -0,0 +1,421 @@
+package io.orcana;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import timber.log.Timber;
+
+/*
+ * Streaming parser for JSON data track messages. Fields are read straight into reusable
+ * primitive holders and the message is routed on its "type" once the object is consumed,
+ * so no JSONObject tree is built and roomDimensions are parsed exactly once per message.
+ *
+ * Annotations may carry a per-shape "seq", see AnnotationSequencer.
+ *
+ * Strokes carry their points as a flat [x1, y1, x2, y2, ...] array. APPEND_POINTS only carries
+ * the points added since the last message, which the handler adds to the end of the stroke:
+ *
+ *   {"type":"APPEND_POINTS","annotation":{"id":"7","seq":3,"points":[...]},"roomDimensions":{...}}
+ *
+ * Annotation deltas may carry a top level "version". Versioned deltas are only dispatched if the
+ * handler accepts that version, so stale ones are dropped. ANNOTATION_SNAPSHOT carries the
+ * complete shape set in an "annotations" array along with the version it brings the scene to:
+ *
+ *   {"type":"ANNOTATION_SNAPSHOT","version":42,"roomDimensions":{...},"annotations":[{...},...]}
+ *
+ * UPDATE_SCREENSHOT may name its image with an "id", which SHOW_SCREENSHOT can then refer to
+ * instead of sending the image again:
+ *
+ *   {"type":"SHOW_SCREENSHOT","screenshot":{"id":"xray-2"}}
+ *
+ * Not thread safe, each message thread owns its own parser.
+ */
+final class DataTrackMessageParser {
+    static final String ADD_ANNOTATION = "ADD_ANNOTATION";
+    static final String UPDATE_ANNOTATION = "UPDATE_ANNOTATION";
+    static final String REMOVE_ANNOTATION = "REMOVE_ANNOTATION";
+    static final String APPEND_POINTS = "APPEND_POINTS";
+    static final String RESTART_ANNOTATION = "RESTART_ANNOTATION";
+    static final String ANNOTATION_SNAPSHOT = "ANNOTATION_SNAPSHOT";
+    static final String UPDATE_SCREENSHOT = "UPDATE_SCREENSHOT";
+    static final String SHOW_SCREENSHOT = "SHOW_SCREENSHOT";
+    static final String SCREENSHOT_CHUNK = "SCREENSHOT_CHUNK";
+    static final String SCREENSHOT_TILE = "SCREENSHOT_TILE";
+    static final String ADMIN = "ADMIN";
+
+    private final DataTrackMessageHandler handler;
+
+    private final AnnotationRecord annotation = new AnnotationRecord();
+    private final AdminMessage admin = new AdminMessage();
+    // Snapshot entries, taken from a pool that only ever grows to the largest snapshot
+    private final ArrayList<AnnotationRecord> snapshot = new ArrayList<>();
+    private final ArrayList<AnnotationRecord> snapshotPool = new ArrayList<>();
+    private long version;
+    private float roomWidth;
+    private float roomHeight;
+    private String screenshotSrc;
+    private String screenshotId;
+    private int screenshotSeq;
+    private int screenshotTotal;
+    private String screenshotData;
+    private String screenshotPreview;
+    private int screenshotWidth;
+    private int screenshotHeight;
+    private int screenshotTileSize;
+    private int screenshotTile;
+
+    DataTrackMessageParser(DataTrackMessageHandler handler) {
+        this.handler = handler;
+    }
+
+    /*
+     * Finds the message type without parsing, so messages can be routed before they are queued.
+     * Looks for the first "type" key, which the console always sends first; a wrong guess only
+     * puts the message in the wrong lane.
+     */
+    @Nullable
+    static String peekType(String json) {
+        int key = json.indexOf("\"type\"");
+        if (key < 0) {
+            return null;
+        }
+        int colon = json.indexOf(':', key + 6);
+        int start = colon < 0 ? -1 : json.indexOf('"', colon + 1);
+        int end = start < 0 ? -1 : json.indexOf('"', start + 1);
+        return end < 0 ? null : json.substring(start + 1, end);
+    }
+
+    void parse(String json) {
+        annotation.reset();
+        admin.reset();
+        snapshot.clear();
+        version = -1;
+        roomWidth = 0f;
+        roomHeight = 0f;
+        screenshotSrc = null;
+        screenshotId = null;
+        screenshotSeq = -1;
+        screenshotTotal = 0;
+        screenshotData = null;
+        screenshotPreview = null;
+        screenshotWidth = 0;
+        screenshotHeight = 0;
+        screenshotTileSize = 0;
+        screenshotTile = -1;
+
+        String type = null;
+        boolean hasIdentity = false;
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "type":
+                        type = reader.nextString();
+                        break;
+                    case "annotation":
+                        readAnnotation(reader, annotation);
+                        break;
+                    case "annotations":
+                        readSnapshot(reader);
+                        break;
+                    case "version":
+                        version = reader.nextLong();
+                        break;
+                    case "roomDimensions":
+                        readRoomDimensions(reader);
+                        break;
+                    case "screenshot":
+                        readScreenshot(reader);
+                        break;
+                    case "action":
+                        admin.action = nextStringOrNull(reader);
+                        break;
+                    case "identity":
+                        admin.identity = nextStringOrNull(reader);
+                        hasIdentity = true;
+                        break;
+                    case "caseCreatorSid":
+                        admin.caseCreatorSid = nextStringOrNull(reader);
+                        break;
+                    case "pinnedParticipantSid":
+                        admin.pinnedParticipantSid = nextStringOrNull(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+                if (hasIdentity && admin.action != null && ADMIN.equals(type)
+                        && !handler.acceptsAdmin(admin.action, admin.identity)) {
+                    // Addressed to another device, the rest of the message does not matter
+                    return;
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Timber.e(e, "Could not parse data track message");
+            return;
+        }
+
+        dispatch(type);
+    }
+
+    private void dispatch(String type) {
+        if (type == null) {
+            Timber.w("Data track message without a type");
+            return;
+        }
+
+        switch (type) {
+            case ADD_ANNOTATION:
+            case UPDATE_ANNOTATION:
+            case APPEND_POINTS:
+            case REMOVE_ANNOTATION:
+            case RESTART_ANNOTATION:
+                if (version >= 0 && !handler.acceptsAnnotationVersion(version)) {
+                    Timber.d("Dropping stale %s version %d", type, version);
+                    return;
+                }
+                break;
+        }
+
+        switch (type) {
+            case ADD_ANNOTATION:
+                if (hasAnnotation()) {
+                    handler.addAnnotation(annotation, roomWidth, roomHeight);
+                }
+                break;
+            case UPDATE_ANNOTATION:
+                if (hasAnnotation()) {
+                    handler.updateAnnotation(annotation, roomWidth, roomHeight);
+                }
+                break;
+            case APPEND_POINTS:
+                if (hasAnnotation()) {
+                    handler.appendPoints(annotation, roomWidth, roomHeight);
+                }
+                break;
+            case REMOVE_ANNOTATION:
+                if (annotation.id != null) {
+                    handler.removeAnnotation(annotation.id, annotation.seq);
+                }
+                break;
+            case RESTART_ANNOTATION:
+                handler.restartAnnotation();
+                break;
+            case ANNOTATION_SNAPSHOT:
+                if (snapshot.isEmpty() || roomWidth > 0f && roomHeight > 0f) {
+                    handler.annotationSnapshot(version, snapshot, roomWidth, roomHeight);
+                } else {
+                    Timber.w("Dropping annotation snapshot without room dimensions");
+                }
+                break;
+            case UPDATE_SCREENSHOT:
+                handler.updateScreenshot(screenshotId, screenshotSrc);
+                break;
+            case SHOW_SCREENSHOT:
+                if (screenshotId != null) {
+                    handler.showScreenshot(screenshotId);
+                }
+                break;
+            case SCREENSHOT_CHUNK:
+                if (screenshotId != null && screenshotData != null) {
+                    handler.screenshotChunk(screenshotId, screenshotSeq, screenshotTotal,
+                            screenshotData, screenshotPreview);
+                }
+                break;
+            case SCREENSHOT_TILE:
+                if (screenshotSrc != null && screenshotWidth > 0 && screenshotHeight > 0) {
+                    handler.screenshotTile(screenshotWidth, screenshotHeight, screenshotTileSize,
+                            screenshotTile, screenshotSrc);
+                }
+                break;
+            case ADMIN:
+                if (admin.action != null) {
+                    handler.admin(admin);
+                }
+                break;
+        }
+    }
+
+    private boolean hasAnnotation() {
+        if (annotation.id == null || roomWidth <= 0f || roomHeight <= 0f) {
+            Timber.w("Dropping annotation %s without id or room dimensions", annotation.id);
+            return false;
+        }
+        return true;
+    }
+
+    private void readRoomDimensions(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "width":
+                    roomWidth = (float) reader.nextDouble();
+                    break;
+                case "height":
+                    roomHeight = (float) reader.nextDouble();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readScreenshot(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "src":
+                    screenshotSrc = nextStringOrNull(reader);
+                    break;
+                case "id":
+                    screenshotId = reader.nextString();
+                    break;
+                case "seq":
+                    screenshotSeq = reader.nextInt();
+                    break;
+                case "total":
+                    screenshotTotal = reader.nextInt();
+                    break;
+                case "data":
+                    screenshotData = nextStringOrNull(reader);
+                    break;
+                case "preview":
+                    screenshotPreview = nextStringOrNull(reader);
+                    break;
+                case "width":
+                    screenshotWidth = reader.nextInt();
+                    break;
+                case "height":
+                    screenshotHeight = reader.nextInt();
+                    break;
+                case "tileSize":
+                    screenshotTileSize = reader.nextInt();
+                    break;
+                case "tile":
+                    screenshotTile = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readPoints(JsonReader reader, AnnotationRecord annotation) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            float x = (float) reader.nextDouble();
+            annotation.addPoint(x, (float) reader.nextDouble());
+        }
+        reader.endArray();
+    }
+
+    private void readSnapshot(JsonReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int index = snapshot.size();
+            if (index == snapshotPool.size()) {
+                snapshotPool.add(new AnnotationRecord());
+            }
+            AnnotationRecord record = snapshotPool.get(index);
+            record.reset();
+            readAnnotation(reader, record);
+            if (record.id != null) {
+                snapshot.add(record);
+            }
+        }
+        reader.endArray();
+    }
+
+    // Reads every known field regardless of category, updates may omit the category.
+    private void readAnnotation(JsonReader reader, AnnotationRecord annotation) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    annotation.id = reader.nextString();
+                    break;
+                case "seq":
+                    annotation.seq = reader.nextLong();
+                    break;
+                case "category":
+                    annotation.category = AnnotationRecord.category(reader.nextString());
+                    break;
+                case "color":
+                    annotation.color = AnnotationStyleCache.color(reader.nextString());
+                    break;
+                case "cx":
+                    annotation.cx = (float) reader.nextDouble();
+                    break;
+                case "cy":
+                    annotation.cy = (float) reader.nextDouble();
+                    break;
+                case "r":
+                    annotation.r = (float) reader.nextDouble();
+                    break;
+                case "x":
+                    annotation.x = (float) reader.nextDouble();
+                    break;
+                case "y":
+                    annotation.y = (float) reader.nextDouble();
+                    break;
+                case "width":
+                    annotation.width = (float) reader.nextDouble();
+                    break;
+                case "height":
+                    annotation.height = (float) reader.nextDouble();
+                    break;
+                case "transform":
+                    annotation.parseTransform(nextStringOrNull(reader));
+                    break;
+                case "x1":
+                    annotation.x1 = (float) reader.nextDouble();
+                    break;
+                case "y1":
+                    annotation.y1 = (float) reader.nextDouble();
+                    break;
+                case "x2":
+                    annotation.x2 = (float) reader.nextDouble();
+                    break;
+                case "y2":
+                    annotation.y2 = (float) reader.nextDouble();
+                    break;
+                case "fontSize":
+                    if (reader.peek() == JsonToken.NUMBER) {
+                        annotation.fontSize = (int) reader.nextDouble();
+                    } else {
+                        annotation.fontSize = AnnotationStyleCache.fontSize(reader.nextString());
+                    }
+                    break;
+                case "text":
+                    annotation.text = nextStringOrNull(reader);
+                    break;
+                case "points":
+                    readPoints(reader, annotation);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
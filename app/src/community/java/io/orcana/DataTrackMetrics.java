@@ -0,0 +1,219 @@
+package io.orcana;
+
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counters and latency histograms of the data track ingestion path, per message type:
+ *
+ *   received   messages and bytes (UTF-16 chars for JSON text, wire bytes when compressed),
+ *              compressed JSON under COMPRESSED since its type is only known once inflated
+ *   compressed messages that arrived compressed and what they inflated to
+ *   dropped    messages thrown away: full lanes, senders leaving, stale versions or sequences
+ *   coalesced  changes folded into a later one before they were drawn
+ *   limited    messages over their sender's rate limits, also counted as dropped or coalesced
+ *   full       messages that found their lane full, also counted as dropped
+ *   wait       time a message spent queued on its sender
+ *   parse      time to parse a message and dispatch it to the handler
+ *   invalidate time from dispatch until the frame that publishes the change
+ *
+ * Recording is a few atomic increments, so it stays on in release builds. Histograms use power
+ * of two buckets in microseconds, percentiles are reported as the upper bound of their bucket.
+ */
+final class DataTrackMetrics {
+    static final String BINARY = "BINARY";
+    static final String UNKNOWN = "UNKNOWN";
+    static final String COMPRESSED = "COMPRESSED";
+
+    // Bucket i counts samples below 2^i microseconds, the last one everything from ~4s up
+    static final int BUCKETS = 24;
+
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // Lost a race with another sample, try again
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getMaxMicros() {
+            return maxNanos.get() / 1000;
+        }
+
+        // Upper bound of the bucket holding the given fraction of the samples, 0 without samples
+        long percentileMicros(double fraction) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(total * fraction));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return i == 0 ? 0 : 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+    }
+
+    static final class TypeMetrics {
+        final String type;
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong compressed = new AtomicLong();
+        final AtomicLong inflatedBytes = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong coalesced = new AtomicLong();
+        final AtomicLong rateLimited = new AtomicLong();
+        final AtomicLong laneFull = new AtomicLong();
+        final Histogram queueWait = new Histogram();
+        final Histogram parse = new Histogram();
+        final Histogram invalidate = new Histogram();
+
+        TypeMetrics(String type) {
+            this.type = type;
+        }
+    }
+
+    private final ConcurrentHashMap<String, TypeMetrics> types = new ConcurrentHashMap<>();
+    private volatile long sinceMillis = System.currentTimeMillis();
+
+    TypeMetrics get(@Nullable String type) {
+        String key = type != null ? type : UNKNOWN;
+        TypeMetrics metrics = types.get(key);
+        if (metrics == null) {
+            TypeMetrics created = new TypeMetrics(key);
+            metrics = types.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    void received(@Nullable String type, int bytes) {
+        TypeMetrics metrics = get(type);
+        metrics.messages.incrementAndGet();
+        metrics.bytes.addAndGet(bytes);
+    }
+
+    // Follows received() for compressed messages
+    void inflated(@Nullable String type, int bytes) {
+        TypeMetrics metrics = get(type);
+        metrics.compressed.incrementAndGet();
+        metrics.inflatedBytes.addAndGet(bytes);
+    }
+
+    void dropped(@Nullable String type) {
+        get(type).dropped.incrementAndGet();
+    }
+
+    void rateLimited(@Nullable String type) {
+        get(type).rateLimited.incrementAndGet();
+    }
+
+    void laneFull(@Nullable String type) {
+        get(type).laneFull.incrementAndGet();
+    }
+
+    void coalesced(@Nullable String type) {
+        get(type).coalesced.incrementAndGet();
+    }
+
+    void queueWait(@Nullable String type, long nanos) {
+        get(type).queueWait.record(nanos);
+    }
+
+    void parse(@Nullable String type, long nanos) {
+        get(type).parse.record(nanos);
+    }
+
+    void invalidate(@Nullable String type, long nanos) {
+        get(type).invalidate.record(nanos);
+    }
+
+    void reset() {
+        types.clear();
+        sinceMillis = System.currentTimeMillis();
+    }
+
+    // Plain text report, one block per message type in name order
+    void dump(String prefix, PrintWriter writer) {
+        long seconds = Math.max(1, (System.currentTimeMillis() - sinceMillis) / 1000);
+        writer.print(prefix);
+        writer.print("Data track ingestion over ");
+        writer.print(seconds);
+        writer.println("s");
+
+        ArrayList<String> names = new ArrayList<>(types.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            TypeMetrics metrics = types.get(name);
+            writer.print(prefix);
+            writer.print(name);
+            writer.print(": ");
+            writer.print(metrics.messages.get());
+            writer.print(" msgs, ");
+            writer.print(metrics.bytes.get());
+            writer.print(" bytes, ");
+            writer.print(metrics.messages.get() / seconds);
+            writer.print("/s, dropped ");
+            writer.print(metrics.dropped.get());
+            writer.print(", coalesced ");
+            writer.print(metrics.coalesced.get());
+            writer.print(", limited ");
+            writer.print(metrics.rateLimited.get());
+            writer.print(", full ");
+            writer.println(metrics.laneFull.get());
+            if (metrics.compressed.get() > 0) {
+                writer.print(prefix);
+                writer.print("  compressed ");
+                writer.print(metrics.compressed.get());
+                writer.print(" msgs, inflated to ");
+                writer.print(metrics.inflatedBytes.get());
+                writer.println(" bytes");
+            }
+            dumpHistogram(prefix, writer, "wait", metrics.queueWait);
+            dumpHistogram(prefix, writer, "parse", metrics.parse);
+            dumpHistogram(prefix, writer, "invalidate", metrics.invalidate);
+        }
+    }
+
+    private static void dumpHistogram(String prefix, PrintWriter writer, String name, Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        writer.print(prefix);
+        writer.print("  ");
+        writer.print(name);
+        writer.print(" p50 ");
+        writer.print(histogram.percentileMicros(0.5));
+        writer.print("us p90 ");
+        writer.print(histogram.percentileMicros(0.9));
+        writer.print("us p99 ");
+        writer.print(histogram.percentileMicros(0.99));
+        writer.print("us max ");
+        writer.print(histogram.getMaxMicros());
+        writer.println("us");
+    }
+}
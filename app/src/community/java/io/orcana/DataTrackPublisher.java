@@ -0,0 +1,239 @@
+package io.orcana;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.twilio.video.LocalDataTrack;
+import com.twilio.video.LocalParticipant;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import timber.log.Timber;
+
+/*
+ * Publishes a LocalDataTrack so the console gets feedback from the headset: acknowledgements
+ * of ADMIN commands, the cursor position, what the headset is able to receive and screenshots
+ * it was asked to show but no longer has.
+ *
+ * Events are not sent as they happen. They are collected and flushed at most once per tick as a
+ * single binary batch, and cursor samples within a tick collapse into the latest one, so the
+ * feedback channel costs one message per tick no matter how chatty the sensors are. The batch
+ * uses the AnnotationCodec framing:
+ *
+ *   byte     magic     0xA7
+ *   byte     version   0x01
+ *   byte     opcode    OP_BATCH
+ *   varint   record count
+ *   records, each starting with its type
+ *     CURSOR              float32 x, y (little-endian, normalized to the cursor view)
+ *     ACK                 varint byteLength; UTF-8 action
+ *     CAPABILITIES        varint flags, CAPABILITY_* bits
+ *     SCREENSHOT_MISSING  varint byteLength; UTF-8 screenshot id
+ *
+ * Capabilities are announced after publishing and again whenever a remote data track shows up,
+ * since a console only receives what is sent after it subscribed.
+ */
+final class DataTrackPublisher {
+    static final byte OP_BATCH = 0x10;
+    static final byte RECORD_CURSOR = 0x01;
+    static final byte RECORD_ACK = 0x02;
+    static final byte RECORD_CAPABILITIES = 0x03;
+    static final byte RECORD_SCREENSHOT_MISSING = 0x04;
+
+    static final int CAPABILITIES = DataTrackCompression.CAPABILITY_DEFLATE;
+
+    static final long TICK_MILLIS = 1000 / 30;
+    private static final int MAX_PENDING_ACKS = 64;
+
+    private final Handler handler;
+
+    // Written from any thread, guarded by lock
+    private final Object lock = new Object();
+    private final ArrayList<String> pendingAcks = new ArrayList<>();
+    private final ArrayList<String> pendingMissing = new ArrayList<>();
+    private boolean hasCursor;
+    private boolean hasCapabilities;
+    private float cursorX;
+    private float cursorY;
+    private boolean tickScheduled;
+    private long lastTickMillis;
+
+    // Only used on the handler thread
+    private LocalParticipant localParticipant;
+    private LocalDataTrack localDataTrack;
+    private final ArrayList<String> sendingAcks = new ArrayList<>();
+    private final ArrayList<String> sendingMissing = new ArrayList<>();
+    private ByteBuffer batch = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+    DataTrackPublisher(Handler handler) {
+        this.handler = handler;
+    }
+
+    void publish(Context context, LocalParticipant participant) {
+        handler.post(() -> {
+            unpublishTrack();
+            localDataTrack = LocalDataTrack.create(context);
+            if (localDataTrack == null) {
+                Timber.e("Could not create local data track");
+                return;
+            }
+            localParticipant = participant;
+            localParticipant.publishTrack(localDataTrack);
+        });
+        announceCapabilities();
+    }
+
+    void unpublish() {
+        synchronized (lock) {
+            pendingAcks.clear();
+            pendingMissing.clear();
+            hasCursor = false;
+            hasCapabilities = false;
+        }
+        handler.post(this::unpublishTrack);
+    }
+
+    // x and y are normalized to the cursor view
+    void cursorMoved(float x, float y) {
+        synchronized (lock) {
+            cursorX = x;
+            cursorY = y;
+            hasCursor = true;
+            scheduleTick();
+        }
+    }
+
+    void announceCapabilities() {
+        synchronized (lock) {
+            hasCapabilities = true;
+            scheduleTick();
+        }
+    }
+
+    void acknowledge(String action) {
+        synchronized (lock) {
+            if (pendingAcks.size() >= MAX_PENDING_ACKS) {
+                Timber.w("Dropping acknowledgement of %s", action);
+                return;
+            }
+            pendingAcks.add(action);
+            scheduleTick();
+        }
+    }
+
+    // The console answers by sending the screenshot again
+    void screenshotMissing(String id) {
+        synchronized (lock) {
+            if (pendingMissing.size() >= MAX_PENDING_ACKS || pendingMissing.contains(id)) {
+                return;
+            }
+            pendingMissing.add(id);
+            scheduleTick();
+        }
+    }
+
+    // Holds the lock. Ticks are only scheduled while there is something to send.
+    private void scheduleTick() {
+        if (tickScheduled) {
+            return;
+        }
+        tickScheduled = true;
+        long delay = lastTickMillis + TICK_MILLIS - SystemClock.uptimeMillis();
+        handler.postDelayed(tick, Math.max(0, delay));
+    }
+
+    private final Runnable tick = this::flush;
+
+    private void flush() {
+        boolean capabilities;
+        boolean cursor;
+        float x;
+        float y;
+        synchronized (lock) {
+            tickScheduled = false;
+            lastTickMillis = SystemClock.uptimeMillis();
+            capabilities = hasCapabilities;
+            cursor = hasCursor;
+            x = cursorX;
+            y = cursorY;
+            hasCapabilities = false;
+            hasCursor = false;
+            sendingAcks.addAll(pendingAcks);
+            pendingAcks.clear();
+            sendingMissing.addAll(pendingMissing);
+            pendingMissing.clear();
+        }
+
+        if (localDataTrack != null) {
+            encode(capabilities, cursor, x, y, sendingAcks, sendingMissing);
+            // send() takes the whole backing array, so hand it one of the exact size
+            localDataTrack.send(ByteBuffer.wrap(Arrays.copyOf(batch.array(), batch.position())));
+        }
+        sendingAcks.clear();
+        sendingMissing.clear();
+    }
+
+    // Encodes into the reused batch buffer, leaving its position at the end of the batch
+    ByteBuffer encode(boolean capabilities, boolean cursor, float x, float y, List<String> acks,
+                      List<String> missing) {
+        int capacity = 8 + (capabilities ? 6 : 0) + (cursor ? 9 : 0)
+                + stringsCapacity(acks) + stringsCapacity(missing);
+        if (batch.capacity() < capacity) {
+            batch = ByteBuffer.allocate(Integer.highestOneBit(capacity) << 1).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        batch.clear();
+        batch.put(AnnotationCodec.MAGIC);
+        batch.put(AnnotationCodec.VERSION);
+        batch.put(OP_BATCH);
+        AnnotationCodec.writeVarInt(batch, acks.size() + missing.size() + (capabilities ? 1 : 0) + (cursor ? 1 : 0));
+        if (capabilities) {
+            batch.put(RECORD_CAPABILITIES);
+            AnnotationCodec.writeVarInt(batch, CAPABILITIES);
+        }
+        if (cursor) {
+            batch.put(RECORD_CURSOR);
+            batch.putFloat(x);
+            batch.putFloat(y);
+        }
+        putStrings(RECORD_ACK, acks);
+        putStrings(RECORD_SCREENSHOT_MISSING, missing);
+        return batch;
+    }
+
+    private static int stringsCapacity(List<String> strings) {
+        int capacity = 0;
+        for (int i = 0, size = strings.size(); i < size; i++) {
+            // Up to three UTF-8 bytes per char plus the type and length
+            capacity += 6 + strings.get(i).length() * 3;
+        }
+        return capacity;
+    }
+
+    private void putStrings(byte type, List<String> strings) {
+        for (int i = 0, size = strings.size(); i < size; i++) {
+            byte[] bytes = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            batch.put(type);
+            AnnotationCodec.writeVarInt(batch, bytes.length);
+            batch.put(bytes);
+        }
+    }
+
+    private void unpublishTrack() {
+        if (localDataTrack == null) {
+            return;
+        }
+        if (localParticipant != null) {
+            localParticipant.unpublishTrack(localDataTrack);
+        }
+        localDataTrack.release();
+        localDataTrack = null;
+        localParticipant = null;
+    }
+}
@@ -0,0 +1,106 @@
+package io.orcana;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import timber.log.Timber;
+
+/*
+ * Captures the messages received on remote data tracks, as they arrive, so they can be replayed
+ * later with DataTrackReplayer. The file is a DataOutputStream (big-endian):
+ *
+ *   int      magic     FILE_MAGIC
+ *   records, until the end of the file
+ *     long     microseconds since the recording started
+ *     UTF      sender identity
+ *     UTF      sender SID
+ *     byte     KIND_TEXT or KIND_BINARY
+ *     int      payload length
+ *     bytes    payload, UTF-8 for text messages
+ *
+ * Writes are buffered and synchronized, a failed write stops the recording, and so does
+ * reaching its size limit.
+ */
+final class DataTrackRecorder implements Closeable {
+    static final int FILE_MAGIC = 0x44545231; // "DTR1"
+    static final byte KIND_TEXT = 0;
+    static final byte KIND_BINARY = 1;
+
+    private final long startNanos = System.nanoTime();
+    private final long maxBytes;
+
+    // Guarded by this, null once closed
+    private DataOutputStream output;
+
+    DataTrackRecorder(OutputStream output) throws IOException {
+        this(output, Long.MAX_VALUE);
+    }
+
+    DataTrackRecorder(OutputStream output, long maxBytes) throws IOException {
+        this.maxBytes = maxBytes;
+        this.output = new DataOutputStream(new BufferedOutputStream(output));
+        this.output.writeInt(FILE_MAGIC);
+    }
+
+    static DataTrackRecorder open(File file, long maxBytes) throws IOException {
+        return new DataTrackRecorder(new FileOutputStream(file), maxBytes);
+    }
+
+    void record(String identity, String sid, String message) {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        write(identity, sid, KIND_TEXT, payload, 0, payload.length);
+    }
+
+    void record(String identity, String sid, ByteBuffer message) {
+        if (message.hasArray()) {
+            write(identity, sid, KIND_BINARY, message.array(),
+                    message.arrayOffset() + message.position(), message.remaining());
+        } else {
+            byte[] payload = new byte[message.remaining()];
+            message.duplicate().get(payload);
+            write(identity, sid, KIND_BINARY, payload, 0, payload.length);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (output == null) {
+            return;
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            Timber.e(e, "Could not close data track recording");
+        }
+        output = null;
+    }
+
+    private synchronized void write(String identity, String sid, byte kind, byte[] payload, int offset, int length) {
+        if (output == null) {
+            return;
+        }
+        try {
+            output.writeLong((System.nanoTime() - startNanos) / 1000);
+            output.writeUTF(identity);
+            output.writeUTF(sid);
+            output.writeByte(kind);
+            output.writeInt(length);
+            output.write(payload, offset, length);
+            // size() saturates at Integer.MAX_VALUE, well past any sensible limit
+            if (output.size() >= maxBytes) {
+                Timber.w("Data track recording reached %d bytes, stopping", output.size());
+                close();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Could not record data track message, stopping");
+            close();
+        }
+    }
+}
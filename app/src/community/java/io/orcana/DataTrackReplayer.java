@@ -0,0 +1,87 @@
+package io.orcana;
+
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Plays a DataTrackRecorder file back into a Target, normally DataTrackLayer.replayTarget, so
+ * annotation and screenshot storms can be reproduced without a room.
+ *
+ * The speed scales the recorded gaps between messages: 1 is real time, 4 four times as fast and
+ * MAX_THROUGHPUT sends every message as soon as the previous one has been handed over. Pacing
+ * uses SystemClock, so under Robolectric a real-time replay advances the fake clock instead of
+ * sleeping.
+ */
+final class DataTrackReplayer {
+    static final float MAX_THROUGHPUT = 0f;
+
+    interface Target {
+        void replay(String identity, String sid, String message);
+
+        void replay(String identity, String sid, ByteBuffer message);
+    }
+
+    static final class Result {
+        int messages;
+        long bytes;
+        long elapsedNanos;
+
+        double messagesPerSecond() {
+            return elapsedNanos > 0 ? messages * 1e9 / elapsedNanos : 0;
+        }
+    }
+
+    private final DataInputStream input;
+
+    DataTrackReplayer(InputStream input) {
+        this.input = new DataInputStream(new BufferedInputStream(input));
+    }
+
+    // Replays the whole recording on the calling thread
+    Result replay(Target target, float speed) throws IOException {
+        if (input.readInt() != DataTrackRecorder.FILE_MAGIC) {
+            throw new IOException("Not a data track recording");
+        }
+
+        Result result = new Result();
+        long startMillis = SystemClock.uptimeMillis();
+        long startNanos = System.nanoTime();
+        while (true) {
+            long offsetMicros;
+            try {
+                offsetMicros = input.readLong();
+            } catch (EOFException e) {
+                break;
+            }
+            String identity = input.readUTF();
+            String sid = input.readUTF();
+            byte kind = input.readByte();
+            byte[] payload = new byte[input.readInt()];
+            input.readFully(payload);
+
+            if (speed > 0) {
+                long delay = startMillis + (long) (offsetMicros / 1000 / speed) - SystemClock.uptimeMillis();
+                if (delay > 0) {
+                    SystemClock.sleep(delay);
+                }
+            }
+
+            if (kind == DataTrackRecorder.KIND_BINARY) {
+                target.replay(identity, sid, ByteBuffer.wrap(payload));
+            } else {
+                target.replay(identity, sid, new String(payload, StandardCharsets.UTF_8));
+            }
+            result.messages++;
+            result.bytes += payload.length;
+        }
+        result.elapsedNanos = System.nanoTime() - startNanos;
+        return result;
+    }
+}
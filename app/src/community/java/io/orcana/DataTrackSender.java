@@ -0,0 +1,460 @@
+package io.orcana;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/*
+ * A remote participant publishing a data track, along with everything needed to process its
+ * messages: its own codec and parser, and queues of messages waiting for them.
+ *
+ * Messages are classified when they arrive and queued in one of three lanes: control (ADMIN),
+ * annotation and bulk (screenshots). Each lane is bounded and FIFO, and the sender always takes
+ * the next message from the most urgent lane that has one, so a kick never waits behind an
+ * annotation burst or a pile of screenshot chunks. The executor from newExecutor() applies the
+ * same rule across senders: a sender with control messages waiting is scheduled first.
+ *
+ * A full lane drops new messages, logged once when it fills up and once more with the count when
+ * it has room again. The bulk lane holds every chunk of a screenshot, and a
+ * screenshot to show or update replaces the queued one of its type instead of waiting behind it.
+ *
+ * A sender only runs on one thread at a time, different senders run in parallel. A sender that
+ * floods its lanes only loses its own messages, and its whole backlog can be dropped without
+ * touching anyone else's.
+ *
+ * Every message is counted in DataTrackMetrics by type, along with how long it waited in its
+ * lane and how long parsing and dispatching it took.
+ *
+ * Each sender is rate limited with token buckets (see RateLimits), checked once a message is
+ * classified but before it is copied or queued: one per lane, and one for everything but control
+ * messages. Over the limit, a message is dropped, unless it only matters as the latest of its
+ * type (a screenshot to show), in which case it is queued anyway, replacing the queued message
+ * of that type if there is one. A flooding console costs us little more than the bucket check,
+ * and however much it floods the other lanes, its control lane stays usable within its own budget.
+ *
+ * Compressed envelopes (see DataTrackCompression) are queued as they came, in the lane their
+ * flags ask for, and only inflated by the drain that processes them: the thread receiving
+ * messages for every sender never inflates anything. Metrics count compressed JSON as COMPRESSED
+ * until it is inflated, and the bytes that came over the wire.
+ */
+final class DataTrackSender {
+    static final int LANE_CONTROL = 0;
+    static final int LANE_ANNOTATION = 1;
+    static final int LANE_BULK = 2;
+    private static final int LANE_NONE = Integer.MAX_VALUE;
+
+    // The bulk lane fits every chunk of the largest screenshot the assembler takes
+    static final int[] LANE_CAPACITY = { 64, 256, ScreenshotAssembler.MAX_CHUNKS };
+
+    // Token bucket sizes and refill rates, for the sender as a whole and per lane
+    static final class RateLimits {
+        static final RateLimits DEFAULT = new RateLimits(256 + ScreenshotAssembler.MAX_CHUNKS, 300,
+                new int[] { 16, 256, ScreenshotAssembler.MAX_CHUNKS }, new double[] { 4, 200, 128 });
+        // For replays, which feed messages as fast as they can be read
+        static final RateLimits UNLIMITED = new RateLimits(Integer.MAX_VALUE, Double.POSITIVE_INFINITY,
+                new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE },
+                new double[] { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY });
+
+        final int senderBurst;
+        final double senderPerSecond;
+        final int[] laneBurst;
+        final double[] lanePerSecond;
+
+        RateLimits(int senderBurst, double senderPerSecond, int[] laneBurst, double[] lanePerSecond) {
+            this.senderBurst = senderBurst;
+            this.senderPerSecond = senderPerSecond;
+            this.laneBurst = laneBurst;
+            this.lanePerSecond = lanePerSecond;
+        }
+    }
+
+    // Messages processed before the sender gives its executor thread to someone else
+    private static final int MAX_MESSAGES_PER_DRAIN = 32;
+
+    private static final AtomicLong drainSequence = new AtomicLong();
+
+    final String identity;
+    final String sid;
+
+    private final Executor executor;
+    private final DataTrackMessageHandler messageHandler;
+    private final DataTrackMetrics metrics;
+    // Only used by the drain that is running, there is never more than one
+    private final AnnotationCodec annotationCodec = new AnnotationCodec();
+    private final DataTrackMessageParser messageParser;
+    private final DataTrackCompression compression = new DataTrackCompression();
+
+    // Guarded by lanes
+    private final ArrayDeque<Message>[] lanes;
+    private final TokenBucket senderBucket;
+    private final TokenBucket[] laneBuckets;
+    private boolean draining;
+    // Messages over the limit since the last one admitted, so a flood is only logged once
+    private int limitedInRow;
+    // Messages each lane dropped since it last had room, so a full lane is only logged once
+    private final int[] laneFullDrops;
+    // Most urgent lane a drain has been submitted for but not started
+    private int scheduledLane = LANE_NONE;
+    private long receivedMessages;
+    private long droppedMessages;
+    private long rateLimitedMessages;
+
+    DataTrackSender(String identity, String sid, Executor executor, DataTrackMessageHandler messageHandler,
+                    DataTrackMetrics metrics) {
+        this(identity, sid, executor, messageHandler, metrics, RateLimits.DEFAULT);
+    }
+
+    @SuppressWarnings("unchecked")
+    DataTrackSender(String identity, String sid, Executor executor, DataTrackMessageHandler messageHandler,
+                    DataTrackMetrics metrics, RateLimits rateLimits) {
+        this.identity = identity;
+        this.sid = sid;
+        this.executor = executor;
+        this.messageHandler = messageHandler;
+        this.metrics = metrics;
+        this.messageParser = new DataTrackMessageParser(messageHandler);
+        this.lanes = new ArrayDeque[LANE_CAPACITY.length];
+        this.senderBucket = new TokenBucket(rateLimits.senderBurst, rateLimits.senderPerSecond);
+        this.laneBuckets = new TokenBucket[LANE_CAPACITY.length];
+        this.laneFullDrops = new int[LANE_CAPACITY.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+            laneBuckets[i] = new TokenBucket(rateLimits.laneBurst[i], rateLimits.lanePerSecond[i]);
+        }
+    }
+
+    // A fixed pool that runs the drains of senders with more urgent messages first
+    static ExecutorService newExecutor(int threads, String threadName) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> new Thread(runnable, threadName));
+    }
+
+    static int lane(@Nullable String type) {
+        if (type == null) {
+            return LANE_ANNOTATION;
+        }
+        switch (type) {
+            case DataTrackMessageParser.ADMIN:
+                return LANE_CONTROL;
+            case DataTrackMessageParser.UPDATE_SCREENSHOT:
+            // Behind the screenshot it refers to, which may still be queued
+            case DataTrackMessageParser.SHOW_SCREENSHOT:
+            case DataTrackMessageParser.SCREENSHOT_CHUNK:
+            case DataTrackMessageParser.SCREENSHOT_TILE:
+                return LANE_BULK;
+            default:
+                return LANE_ANNOTATION;
+        }
+    }
+
+    // Messages where only the latest one matters, these replace the queued one of their type
+    // and are queued even over the rate limits
+    static boolean isCoalescable(@Nullable String type) {
+        return DataTrackMessageParser.UPDATE_SCREENSHOT.equals(type)
+                || DataTrackMessageParser.SHOW_SCREENSHOT.equals(type);
+    }
+
+    void post(ByteBuffer message) {
+        boolean compressed = DataTrackCompression.isCompressed(message);
+        if (!compressed && !AnnotationCodec.isBinaryFrame(message)) {
+            // Not a binary annotation frame, fall back to the JSON path
+            post(StandardCharsets.UTF_8.decode(message).toString());
+            return;
+        }
+
+        String type = compressed && DataTrackCompression.isText(message)
+                ? DataTrackMetrics.COMPRESSED : DataTrackMetrics.BINARY;
+        int lane = compressed ? DataTrackCompression.lane(message) : LANE_ANNOTATION;
+        metrics.received(type, message.remaining());
+        if (!admit(lane)) {
+            dropRateLimited(type);
+            return;
+        }
+        enqueue(lane, new Message(type, null, copy(message), compressed));
+    }
+
+    void post(String message) {
+        String type = DataTrackMessageParser.peekType(message);
+        int lane = lane(type);
+        metrics.received(type, message.length());
+        if (!admit(lane)) {
+            coalesceOrDrop(lane, new Message(type, message, null, false));
+            return;
+        }
+        enqueue(lane, new Message(type, message, null, false));
+    }
+
+    // The track may reuse its buffer once the listener returns
+    private static ByteBuffer copy(ByteBuffer message) {
+        ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+        copy.put(message.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    // Drops everything still waiting to be processed, returns how many messages were dropped
+    int clear() {
+        synchronized (lanes) {
+            int count = 0;
+            for (ArrayDeque<Message> lane : lanes) {
+                count += lane.size();
+                for (Message message : lane) {
+                    metrics.dropped(message.type);
+                }
+                lane.clear();
+            }
+            droppedMessages += count;
+            return count;
+        }
+    }
+
+    // Drops the backlog and frees the inflater, for senders that are going away
+    int release() {
+        int dropped = clear();
+        compression.release();
+        return dropped;
+    }
+
+    long getReceivedMessages() {
+        synchronized (lanes) {
+            return receivedMessages;
+        }
+    }
+
+    long getDroppedMessages() {
+        synchronized (lanes) {
+            return droppedMessages;
+        }
+    }
+
+    // Messages over the rate limits, dropped or coalesced
+    long getRateLimitedMessages() {
+        synchronized (lanes) {
+            return rateLimitedMessages;
+        }
+    }
+
+    // Takes a token from the lane's bucket, and unless it is the control lane from the sender's
+    private boolean admit(int lane) {
+        synchronized (lanes) {
+            receivedMessages++;
+            long now = System.nanoTime();
+            if (laneBuckets[lane].tryTake(now) && (lane == LANE_CONTROL || senderBucket.tryTake(now))) {
+                if (limitedInRow > 0) {
+                    Timber.w("Rate limited %d messages from %s", limitedInRow, identity);
+                    limitedInRow = 0;
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void rateLimited(@Nullable String type) {
+        metrics.rateLimited(type);
+        synchronized (lanes) {
+            rateLimitedMessages++;
+            if (limitedInRow++ == 0) {
+                Timber.w("Rate limiting messages from %s", identity);
+            }
+        }
+    }
+
+    private void dropRateLimited(@Nullable String type) {
+        rateLimited(type);
+        metrics.dropped(type);
+        synchronized (lanes) {
+            droppedMessages++;
+        }
+    }
+
+    private void enqueue(int lane, Message message) {
+        synchronized (lanes) {
+            ArrayDeque<Message> queue = lanes[lane];
+            if (isCoalescable(message.type)) {
+                // A newer screenshot is worth more than an older one, and takes its place
+                Iterator<Message> iterator = queue.iterator();
+                while (iterator.hasNext()) {
+                    Message queued = iterator.next();
+                    if (message.type.equals(queued.type)) {
+                        iterator.remove();
+                        metrics.coalesced(queued.type);
+                        break;
+                    }
+                }
+            } else if (queue.size() >= LANE_CAPACITY[lane]) {
+                // Chunks and tiles are parts of a whole, dropping an older one would waste the rest
+                if (laneFullDrops[lane]++ == 0) {
+                    Timber.w("Lane %d of %s is full, dropping messages", lane, identity);
+                }
+                droppedMessages++;
+                metrics.dropped(message.type);
+                metrics.laneFull(message.type);
+                return;
+            }
+            queue.add(message);
+            if (laneFullDrops[lane] > 0) {
+                Timber.w("Dropped %d messages from %s while lane %d was full", laneFullDrops[lane], identity, lane);
+                laneFullDrops[lane] = 0;
+            }
+
+            // A running drain picks the message up, otherwise make sure one is coming soon enough
+            if (draining || lane >= scheduledLane) {
+                return;
+            }
+            scheduledLane = lane;
+        }
+        executor.execute(new Drain(lane));
+    }
+
+    /*
+     * Over the rate limits. The latest screenshot is never dropped, or the console could be left
+     * showing a stale one until it sends another: it still takes the single queued slot of its
+     * type, which bounds what a flood of them costs to one message waiting at a time.
+     */
+    private void coalesceOrDrop(int lane, Message message) {
+        if (isCoalescable(message.type)) {
+            rateLimited(message.type);
+            enqueue(lane, message);
+        } else {
+            dropRateLimited(message.type);
+        }
+    }
+
+    // Returns the most urgent lane with messages, or LANE_NONE. Holds the lock.
+    private int nextLane() {
+        for (int i = 0; i < lanes.length; i++) {
+            if (!lanes[i].isEmpty()) {
+                return i;
+            }
+        }
+        return LANE_NONE;
+    }
+
+    private void drain() {
+        synchronized (lanes) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+            scheduledLane = LANE_NONE;
+        }
+
+        for (int i = 0; i < MAX_MESSAGES_PER_DRAIN; i++) {
+            Message message;
+            synchronized (lanes) {
+                int lane = nextLane();
+                if (lane == LANE_NONE) {
+                    draining = false;
+                    return;
+                }
+                message = lanes[lane].poll();
+            }
+            long start = System.nanoTime();
+            metrics.queueWait(message.type, start - message.receivedNanos);
+            String type = message.type;
+            try {
+                if (message.compressed) {
+                    type = processCompressed(message);
+                } else if (message.frame != null) {
+                    annotationCodec.decode(message.frame, messageHandler);
+                } else {
+                    messageParser.parse(message.json);
+                }
+            } catch (RuntimeException e) {
+                Timber.e(e, "Could not process message from %s", identity);
+            }
+            metrics.parse(type, System.nanoTime() - start);
+        }
+
+        // Still more to do, go to the back of the line for the most urgent lane left
+        int lane;
+        synchronized (lanes) {
+            draining = false;
+            lane = nextLane();
+            if (lane == LANE_NONE || lane >= scheduledLane) {
+                return;
+            }
+            scheduledLane = lane;
+        }
+        executor.execute(new Drain(lane));
+    }
+
+    // Inflates and processes a compressed envelope, returns the type it turned out to be
+    @Nullable
+    private String processCompressed(Message message) {
+        ByteBuffer payload = compression.inflate(message.frame);
+        if (payload != null && DataTrackCompression.isText(message.frame)) {
+            String json = StandardCharsets.UTF_8.decode(payload).toString();
+            String type = DataTrackMessageParser.peekType(json);
+            metrics.inflated(type, json.length());
+            messageParser.parse(json);
+            return type;
+        }
+        if (payload != null && AnnotationCodec.isBinaryFrame(payload)) {
+            metrics.inflated(DataTrackMetrics.BINARY, payload.remaining());
+            annotationCodec.decode(payload, messageHandler);
+            return DataTrackMetrics.BINARY;
+        }
+        if (payload != null) {
+            Timber.w("Dropping compressed message from %s, not an annotation frame", identity);
+        }
+        metrics.dropped(message.type);
+        synchronized (lanes) {
+            droppedMessages++;
+        }
+        return message.type;
+    }
+
+    /*
+     * A JSON message, a binary annotation frame or a compressed envelope waiting in a lane.
+     * Compressed JSON has no type until it is inflated.
+     */
+    private static final class Message {
+        @Nullable final String type;
+        @Nullable final String json;
+        @Nullable final ByteBuffer frame;
+        final boolean compressed;
+        final long receivedNanos = System.nanoTime();
+
+        Message(@Nullable String type, @Nullable String json, @Nullable ByteBuffer frame, boolean compressed) {
+            this.type = type;
+            this.json = json;
+            this.frame = frame;
+            this.compressed = compressed;
+        }
+    }
+
+    private final class Drain implements Runnable, Comparable<Drain> {
+        private final int lane;
+        private final long sequence = drainSequence.getAndIncrement();
+
+        Drain(int lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            drain();
+        }
+
+        @Override
+        public int compareTo(Drain other) {
+            if (lane != other.lane) {
+                return lane < other.lane ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -27,6 +27,8 @@ import com.twilio.video.app.databinding.RoomActivityBinding;
 import com.twilio.video.app.ui.room.RoomActivity;
 import com.twilio.video.app.ui.room.RoomEvent;
 
+import java.io.PrintWriter;
+
 import timber.log.Timber;
 
 public class OTWrapper implements MotionMenu {
@@ -46,6 +48,8 @@ public class OTWrapper implements MotionMenu {
     private final AudioManager audioManager;
 
     private final DataTrackLayer dataTrackLayer;
+    // Shown in the QR code layout, goes back to the BitmapPool once hidden
+    private Bitmap qrCode;
 
     public OTWrapper(RoomActivity activity, RoomActivityBinding binding, SharedPreferences sharedPreferences) {
         this.roomActivity = activity;
@@ -79,6 +83,7 @@ public class OTWrapper implements MotionMenu {
         setupUI(sharedPreferences);
 
         dataTrackLayer = new DataTrackLayer(this, roomActivity, binding);
+        this.binding.cursorView.setCursorListener(dataTrackLayer::cursorMoved);
 
         // Hack to connect to room without button clicks
         final Handler handler = new Handler(Looper.getMainLooper());
@@ -101,6 +106,8 @@ public class OTWrapper implements MotionMenu {
                     try {
                         Bitmap bitmap = QRCodeGenerator.getQRCodeImage(caseID, 512, 512);
                         binding.QRCodeView.setImageBitmap(bitmap);
+                        releaseQRCode();
+                        qrCode = bitmap;
                     } catch (WriterException e) {
                         e.printStackTrace();
                     }
@@ -111,6 +118,15 @@ public class OTWrapper implements MotionMenu {
 
     private void hideQRCodeLayout(View view){
         binding.QRCodeLayout.setVisibility(View.GONE);
+        binding.QRCodeView.setImageDrawable(null);
+        releaseQRCode();
+    }
+
+    private void releaseQRCode() {
+        if (qrCode != null) {
+            QRCodeGenerator.releaseQRCodeImage(qrCode);
+            qrCode = null;
+        }
     }
 
 //    public void onResume() {
@@ -121,6 +137,10 @@ public class OTWrapper implements MotionMenu {
 //        this.menuController.onPause();
 //    }
 
+    public void dump(String prefix, PrintWriter writer) {
+        this.dataTrackLayer.dump(prefix, writer);
+    }
+
     public void onDestroy() {
         this.dataTrackLayer.onDestroy();
     }
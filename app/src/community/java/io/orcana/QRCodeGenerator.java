@@ -42,22 +42,30 @@ public final class QRCodeGenerator {
         return pngData;
     }
 
+    // The bitmap comes from BitmapPool, release it there once it is no longer shown
     public static Bitmap getQRCodeImage(String text, int width, int height) throws WriterException {
         QRCodeWriter qrCodeWriter = new QRCodeWriter();
         BitMatrix bitMatrix = qrCodeWriter.encode(text, BarcodeFormat.QR_CODE, width, height);
 
         int bWidth = bitMatrix.getWidth();
         int bHeight = bitMatrix.getHeight();
-        Bitmap bmp = Bitmap.createBitmap(bWidth, bHeight, Bitmap.Config.RGB_565);
-        for (int x = 0; x < bWidth; x++){
-            for (int y = 0; y < bHeight; y++){
-                bmp.setPixel(x, y, bitMatrix.get(x,y) ? Color.BLACK : Color.WHITE);
+        Bitmap bmp = BitmapPool.shared().get(bWidth, bHeight, Bitmap.Config.RGB_565);
+        // A row at a time, setPixel() per module is slow
+        int[] row = new int[bWidth];
+        for (int y = 0; y < bHeight; y++){
+            for (int x = 0; x < bWidth; x++){
+                row[x] = bitMatrix.get(x, y) ? Color.BLACK : Color.WHITE;
             }
+            bmp.setPixels(row, 0, bWidth, 0, y, bWidth, 1);
         }
 
         return bmp;
     }
 
+    public static void releaseQRCodeImage(Bitmap bitmap) {
+        BitmapPool.shared().release(bitmap);
+    }
+
     public static Bitmap byteArrayToBitMap(byte[] pngData){
         Bitmap bitmap = BitmapFactory.decodeByteArray(pngData, 0, pngData.length);
         return bitmap;
@@ -0,0 +1,125 @@
+package io.orcana;
+
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/*
+ * Reassembles screenshots the console splits into SCREENSHOT_CHUNK messages so a large image
+ * never has to travel as one data track message:
+ *
+ *   {"type":"SCREENSHOT_CHUNK","screenshot":{"id":"42","seq":0,"total":12,
+ *     "data":"<piece of the base64 data URL>","preview":"<optional small data URL>"}}
+ *
+ * The pieces are handed to the decoder as they are, without joining them into one string. A
+ * preview, usually sent with the first chunk, is shown while the rest is still arriving.
+ *
+ * Only a few screenshots are buffered at once, the oldest is dropped to make room for a new
+ * one, and a screenshot that has not received a chunk for TIMEOUT_MILLIS is given up on. Once a
+ * screenshot completes, anything that started before it is stale and discarded as well.
+ *
+ * Not thread safe, only used from the data track message thread.
+ */
+final class ScreenshotAssembler {
+    static final int MAX_PENDING = 4;
+    static final int MAX_CHUNKS = 1024;
+    static final long TIMEOUT_MILLIS = 5000;
+
+    interface Listener {
+        void onPreview(String src);
+
+        void onScreenshot(String[] parts);
+    }
+
+    private static final class Pending {
+        final String[] parts;
+        int received;
+        long lastChunkMillis;
+
+        Pending(int total) {
+            parts = new String[total];
+        }
+    }
+
+    private final Listener listener;
+    // Arrival order, the eldest entry is the oldest screenshot
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+
+    ScreenshotAssembler(Listener listener) {
+        this.listener = listener;
+    }
+
+    void addChunk(String id, int seq, int total, String data, @Nullable String preview, long now) {
+        evictExpired(now);
+
+        if (total <= 0 || total > MAX_CHUNKS || seq < 0 || seq >= total) {
+            Timber.w("Dropping screenshot %s chunk %d of %d", id, seq, total);
+            return;
+        }
+
+        Pending screenshot = pending.get(id);
+        if (screenshot == null) {
+            if (pending.size() >= MAX_PENDING) {
+                Iterator<String> eldest = pending.keySet().iterator();
+                Timber.w("Too many partial screenshots, dropping %s", eldest.next());
+                eldest.remove();
+            }
+            screenshot = new Pending(total);
+            pending.put(id, screenshot);
+        } else if (screenshot.parts.length != total) {
+            Timber.w("Screenshot %s changed its chunk count from %d to %d", id, screenshot.parts.length, total);
+            return;
+        }
+
+        if (screenshot.parts[seq] == null) {
+            screenshot.parts[seq] = data;
+            screenshot.received++;
+        }
+        screenshot.lastChunkMillis = now;
+
+        if (screenshot.received == total) {
+            discardUntil(id);
+            listener.onScreenshot(screenshot.parts);
+        } else if (preview != null) {
+            listener.onPreview(preview);
+        }
+    }
+
+    // A whole screenshot arrived some other way, nothing buffered can be newer
+    void clear() {
+        pending.clear();
+    }
+
+    int pendingCount() {
+        return pending.size();
+    }
+
+    // Removes the given screenshot and every screenshot that started before it
+    private void discardUntil(String id) {
+        Iterator<String> iterator = pending.keySet().iterator();
+        while (iterator.hasNext()) {
+            String pendingId = iterator.next();
+            iterator.remove();
+            if (pendingId.equals(id)) {
+                return;
+            }
+        }
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Map.Entry<String, Pending>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Pending> entry = iterator.next();
+            Pending screenshot = entry.getValue();
+            if (now - screenshot.lastChunkMillis >= TIMEOUT_MILLIS) {
+                Timber.w("Screenshot %s timed out with %d of %d chunks", entry.getKey(),
+                        screenshot.received, screenshot.parts.length);
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package io.orcana;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Decoded screenshots, so a console toggling between a few reference images does not make us
+ * decode them again. Screenshots are keyed by a SHA-256 of their base64 payload, and the id their
+ * sender gave one is a name for that key: a sender reusing an id for a new image renames it
+ * rather than serving the old bitmap. Least recently shown screenshots are evicted once the
+ * bitmaps add up to more than the budget.
+ *
+ * Cached bitmaps are shared with the screenshot view: ScreenshotDecoder never decodes into one
+ * or draws tiles onto one, and never hands one out as a spare.
+ *
+ * Thread safe.
+ */
+final class ScreenshotCache {
+    // A 1280x720 screenshot takes 3.6MB, so the cap keeps about eight of them
+    private static final int MAX_BUDGET_BYTES = 32 * 1024 * 1024;
+    private static final int HASH_CHUNK_BYTES = 4 * 1024;
+    // Ids are only strings, but outlive their screenshots, so only the recent ones are kept
+    private static final int MAX_NAMES = 64;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static final class Entry {
+        final Bitmap bitmap;
+        final int frameWidth;
+        final int frameHeight;
+
+        Entry(Bitmap bitmap, int frameWidth, int frameHeight) {
+            this.bitmap = bitmap;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+        }
+    }
+
+    private final LruCache<String, Entry> entries;
+    // Id keys to content keys
+    private final LruCache<String, String> names = new LruCache<>(MAX_NAMES);
+
+    ScreenshotCache() {
+        this((int) Math.min(MAX_BUDGET_BYTES, Runtime.getRuntime().maxMemory() / 8));
+    }
+
+    ScreenshotCache(int budgetBytes) {
+        entries = new LruCache<String, Entry>(budgetBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.bitmap.getAllocationByteCount();
+            }
+        };
+    }
+
+    // key is a content key, or an id key named after one
+    @Nullable
+    Entry get(String key) {
+        String contentKey = names.get(key);
+        return entries.get(contentKey != null ? contentKey : key);
+    }
+
+    void put(String contentKey, Bitmap bitmap, int frameWidth, int frameHeight) {
+        entries.put(contentKey, new Entry(bitmap, frameWidth, frameHeight));
+    }
+
+    // Points an id key at the screenshot with the given content key, whether cached or not
+    void name(String idKey, String contentKey) {
+        names.put(idKey, contentKey);
+    }
+
+    void clear() {
+        entries.evictAll();
+        names.evictAll();
+    }
+
+    // For ComponentCallbacks2.onTrimMemory(), the screenshots are decoded again if they come back
+    void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            entries.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            entries.trimToSize(entries.maxSize() / 2);
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    // Name of a screenshot its sender gave an id, scoped to the sender so ids cannot collide
+    static String idKey(String scope, String id) {
+        return "id:" + scope + ":" + id;
+    }
+
+    /*
+     * Key of a screenshot by its content, starting at the given offset of the first part. The
+     * payload is base64, so its chars are hashed as single bytes.
+     */
+    static String contentKey(String[] parts, int start) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] chunk = new byte[HASH_CHUNK_BYTES];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            for (int position = i == 0 ? start : 0; position < part.length(); ) {
+                int count = Math.min(chunk.length, part.length() - position);
+                for (int j = 0; j < count; j++) {
+                    chunk[j] = (byte) part.charAt(position + j);
+                }
+                digest.update(chunk, 0, count);
+                position += count;
+            }
+        }
+
+        byte[] hash = digest.digest();
+        char[] key = new char[4 + hash.length * 2];
+        "sha:".getChars(0, 4, key, 0);
+        for (int i = 0; i < hash.length; i++) {
+            key[4 + i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            key[5 + i * 2] = HEX[hash[i] & 0xF];
+        }
+        return new String(key);
+    }
+}
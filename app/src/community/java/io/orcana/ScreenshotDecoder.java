@@ -0,0 +1,399 @@
+package io.orcana;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Base64;
+import android.util.Base64InputStream;
+import android.view.View;
+import android.widget.ImageView;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/*
+ * Decodes UPDATE_SCREENSHOT images on a dedicated thread and shows them in the screenshot view.
+ *
+ * The base64 payload is decoded while BitmapFactory reads it, so the full JPEG is never copied
+ * into a byte array, and the image is downsampled to the view size with inSampleSize. Every
+ * request bumps a generation; an older decode notices on its next read and gives up, so only
+ * the newest screenshot is ever finished. Bitmaps are decoded into via inBitmap, taken from the
+ * shared BitmapPool, and go back to it once they are replaced on screen.
+ *
+ * A screenshot may come in several parts (see ScreenshotAssembler), they are read back to back
+ * as if they were one string.
+ *
+ * Full screenshots are kept in a ScreenshotCache by their content, under the id their sender
+ * gave them if any, and shown from there when they come again. show() brings back a cached
+ * screenshot by id alone. Cached bitmaps are shared with the cache, so they never go back to the pool and
+ * tiles are drawn onto a copy of them.
+ *
+ * SCREENSHOT_TILE messages patch a single tile of the current screenshot. The displayed bitmap
+ * is kept mutable and acts as the composite: tiles are decoded here and then drawn into it on
+ * the UI thread, so only the changed region is ever decoded or touched. Tiles for a frame size
+ * that is not on screen start a new, blank composite. Tiles do not cancel anything, they are
+ * applied in arrival order behind any full screenshot decoded before them.
+ */
+final class ScreenshotDecoder {
+    private static final String THREAD_NAME = "ScreenshotDecoder";
+    private static final String DATA_URL_PREFIX = "data:";
+    // Decoded bitmaps use the default ARGB_8888 config
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final ImageView screenshotView;
+    @Nullable private final HandlerThread decoderThread;
+    private final Handler decoderHandler;
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ScreenshotCache cache = new ScreenshotCache();
+    private final BitmapPool pool;
+
+    // Only used on the UI thread
+    private Bitmap displayed;
+    // Whether displayed belongs to the cache
+    private boolean displayedCached;
+    private int displayedFrameWidth;
+    private int displayedFrameHeight;
+    private final Canvas compositeCanvas = new Canvas();
+    private final Paint tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF tileBounds = new RectF();
+
+    ScreenshotDecoder(ImageView screenshotView) {
+        this(screenshotView, new HandlerThread(THREAD_NAME), BitmapPool.shared());
+    }
+
+    // Without a thread of its own everything is decoded on the main looper
+    ScreenshotDecoder(ImageView screenshotView, @Nullable HandlerThread decoderThread, BitmapPool pool) {
+        this.screenshotView = screenshotView;
+        this.decoderThread = decoderThread;
+        this.pool = pool;
+        if (decoderThread != null) {
+            decoderThread.start();
+            decoderHandler = new Handler(decoderThread.getLooper());
+        } else {
+            decoderHandler = new Handler(Looper.getMainLooper());
+        }
+    }
+
+    // Safe to call from any thread, cancels whatever is still being decoded
+    void decode(@Nullable String src) {
+        decode(null, src == null ? null : new String[] { src });
+    }
+
+    void decode(@Nullable String[] parts) {
+        decode(null, parts);
+    }
+
+    // idKey is a ScreenshotCache.idKey() that from now on names these parts, or null
+    void decode(@Nullable String idKey, @Nullable String[] parts) {
+        int request = generation.incrementAndGet();
+        int targetWidth = screenshotView.getWidth();
+        int targetHeight = screenshotView.getHeight();
+        decoderHandler.post(() -> decodeScreenshot(idKey, parts, request, targetWidth, targetHeight));
+    }
+
+    // Shows a cached screenshot, or runs onMissing on the decoder thread if it is not cached
+    void show(String key, Runnable onMissing) {
+        int request = generation.incrementAndGet();
+        decoderHandler.post(() -> {
+            if (isCancelled(request)) {
+                return;
+            }
+            ScreenshotCache.Entry entry = cache.get(key);
+            if (entry == null) {
+                onMissing.run();
+                return;
+            }
+            show(entry.bitmap, entry.frameWidth, entry.frameHeight, true, request);
+        });
+    }
+
+    // Forgets the cached screenshots, the one on screen stays until it is replaced
+    void clearCache() {
+        cache.clear();
+    }
+
+    // For ComponentCallbacks2.onTrimMemory()
+    void trimMemory(int level) {
+        cache.trimMemory(level);
+    }
+
+    // Patches one tile of a frameWidth x frameHeight screenshot, tiles are numbered row by row
+    void decodeTile(int frameWidth, int frameHeight, int tileSize, int tile, String src) {
+        int request = generation.get();
+        int targetWidth = screenshotView.getWidth();
+        int targetHeight = screenshotView.getHeight();
+        decoderHandler.post(() -> decodeScreenshotTile(frameWidth, frameHeight, tileSize, tile, src,
+                request, targetWidth, targetHeight));
+    }
+
+    void release() {
+        generation.incrementAndGet();
+        if (decoderThread != null) {
+            decoderThread.quit();
+        }
+    }
+
+    private boolean isCancelled(int request) {
+        return request != generation.get();
+    }
+
+    private void decodeScreenshot(@Nullable String idKey, @Nullable String[] parts, int request,
+                                  int targetWidth, int targetHeight) {
+        if (isCancelled(request)) {
+            return;
+        }
+        if (parts == null) {
+            show(null, 0, 0, false, request);
+            return;
+        }
+
+        // Skips "data:image/jpeg;base64," without copying the payload
+        int start = parts[0].startsWith(DATA_URL_PREFIX) ? parts[0].indexOf(',') + 1 : 0;
+
+        // Hashing the payload is much cheaper than decoding it again, and an id sent with new
+        // content has to stop naming the old one
+        String key = ScreenshotCache.contentKey(parts, start);
+        if (idKey != null) {
+            cache.name(idKey, key);
+        }
+        ScreenshotCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            show(entry.bitmap, entry.frameWidth, entry.frameHeight, true, request);
+            return;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(open(parts, start, request), null, options);
+        if (isCancelled(request)) {
+            return;
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Timber.w("Could not read screenshot bounds");
+            return;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight,
+                targetWidth, targetHeight);
+        options.inMutable = true;
+        int sampleSize = options.inSampleSize;
+        options.inBitmap = pool.take(((options.outWidth + sampleSize - 1) / sampleSize)
+                * ((options.outHeight + sampleSize - 1) / sampleSize) * BYTES_PER_PIXEL);
+
+        Bitmap bitmap = decode(parts, start, request, options);
+        if (bitmap == null) {
+            if (!isCancelled(request)) {
+                Timber.w("Could not decode screenshot");
+            }
+            return;
+        }
+        if (isCancelled(request)) {
+            pool.release(bitmap);
+            return;
+        }
+        cache.put(key, bitmap, options.outWidth, options.outHeight);
+        show(bitmap, options.outWidth, options.outHeight, true, request);
+    }
+
+    private void decodeScreenshotTile(int frameWidth, int frameHeight, int tileSize, int tile, String src,
+                                      int request, int targetWidth, int targetHeight) {
+        if (isCancelled(request)) {
+            return;
+        }
+        int columns = tileSize > 0 ? (frameWidth + tileSize - 1) / tileSize : 0;
+        int rows = tileSize > 0 ? (frameHeight + tileSize - 1) / tileSize : 0;
+        if (tile < 0 || tile >= columns * rows) {
+            Timber.w("Dropping screenshot tile %d of a %dx%d grid", tile, columns, rows);
+            return;
+        }
+
+        // Same sample size as a full screenshot of that frame, so the tile lands at composite scale
+        int sampleSize = calculateSampleSize(frameWidth, frameHeight, targetWidth, targetHeight);
+        int decodedTileSize = (tileSize + sampleSize - 1) / sampleSize;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inBitmap = pool.take(decodedTileSize * decodedTileSize * BYTES_PER_PIXEL);
+
+        int start = src.startsWith(DATA_URL_PREFIX) ? src.indexOf(',') + 1 : 0;
+        Bitmap bitmap = decode(new String[] { src }, start, request, options);
+        if (bitmap == null) {
+            if (!isCancelled(request)) {
+                Timber.w("Could not decode screenshot tile %d", tile);
+            }
+            return;
+        }
+
+        int left = tile % columns * tileSize;
+        int top = tile / columns * tileSize;
+        Bitmap decodedTile = bitmap;
+        screenshotView.post(() -> {
+            applyTile(decodedTile, frameWidth, frameHeight, left, top, sampleSize, request);
+            pool.release(decodedTile);
+        });
+    }
+
+    // Runs on the UI thread
+    private void applyTile(Bitmap tile, int frameWidth, int frameHeight, int left, int top,
+                           int sampleSize, int request) {
+        if (isCancelled(request)) {
+            return;
+        }
+
+        if (displayed == null || !displayed.isMutable()
+                || displayedFrameWidth != frameWidth || displayedFrameHeight != frameHeight) {
+            Bitmap composite = pool.get((frameWidth + sampleSize - 1) / sampleSize,
+                    (frameHeight + sampleSize - 1) / sampleSize, Bitmap.Config.ARGB_8888);
+            composite.eraseColor(Color.TRANSPARENT);
+            setDisplayed(composite, frameWidth, frameHeight, false);
+        } else if (displayedCached) {
+            // Patch a copy, the cached screenshot may be shown again later
+            Bitmap cached = displayed;
+            Bitmap copy = pool.get(cached.getWidth(), cached.getHeight(), Bitmap.Config.ARGB_8888);
+            copy.eraseColor(Color.TRANSPARENT);
+            setDisplayed(copy, frameWidth, frameHeight, false);
+            compositeCanvas.drawBitmap(cached, 0f, 0f, null);
+        }
+
+        // The composite may have been decoded at a different scale than this tile
+        float scaleX = (float) displayed.getWidth() / frameWidth;
+        float scaleY = (float) displayed.getHeight() / frameHeight;
+        tileBounds.set(left * scaleX, top * scaleY,
+                (left + tile.getWidth() * sampleSize) * scaleX,
+                (top + tile.getHeight() * sampleSize) * scaleY);
+        compositeCanvas.drawBitmap(tile, null, tileBounds, tilePaint);
+        screenshotView.invalidate();
+    }
+
+    private InputStream open(String[] parts, int start, int request) {
+        return new Base64InputStream(new StringSource(parts, start, request), Base64.DEFAULT);
+    }
+
+    @Nullable
+    private Bitmap decode(String[] parts, int start, int request, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeStream(open(parts, start, request), null, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be reused after all, or the decode was cancelled. Give
+            // it back and decode into a new one.
+            pool.release(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeStream(open(parts, start, request), null, options);
+        }
+    }
+
+    private void show(@Nullable Bitmap bitmap, int frameWidth, int frameHeight, boolean cached, int request) {
+        screenshotView.post(() -> {
+            if (isCancelled(request)) {
+                if (!cached) {
+                    pool.release(bitmap);
+                }
+                return;
+            }
+            setDisplayed(bitmap, frameWidth, frameHeight, cached);
+        });
+    }
+
+    // Runs on the UI thread
+    private void setDisplayed(@Nullable Bitmap bitmap, int frameWidth, int frameHeight, boolean cached) {
+        Bitmap previous = displayed;
+        boolean previousCached = displayedCached;
+        displayed = bitmap;
+        displayedCached = cached;
+        displayedFrameWidth = frameWidth;
+        displayedFrameHeight = frameHeight;
+        compositeCanvas.setBitmap(bitmap != null && bitmap.isMutable() && !cached ? bitmap : null);
+        screenshotView.setImageBitmap(bitmap);
+        screenshotView.setVisibility(bitmap == null ? View.INVISIBLE : View.VISIBLE);
+        if (previous != bitmap && !previousCached) {
+            pool.release(previous);
+        }
+    }
+
+    // Largest power of two that keeps the image at least as big as the view
+    static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /*
+     * Feeds the base64 characters of the parts to the decoder as ASCII bytes. Reads fail once a
+     * newer screenshot has been requested, which makes BitmapFactory abandon the decode.
+     */
+    private final class StringSource extends InputStream {
+        private final String[] parts;
+        private final int request;
+        private int part;
+        private int position;
+
+        StringSource(String[] parts, int start, int request) {
+            this.parts = parts;
+            this.position = start;
+            this.request = request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            if (!nextPart()) {
+                return -1;
+            }
+            return parts[part].charAt(position++) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            checkCancelled();
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextPart()) {
+                return -1;
+            }
+            String src = parts[part];
+            int count = Math.min(length, src.length() - position);
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = (byte) src.charAt(position + i);
+            }
+            position += count;
+            return count;
+        }
+
+        // Moves past exhausted parts, returns false at the end of the last one
+        private boolean nextPart() {
+            while (position >= parts[part].length()) {
+                if (part == parts.length - 1) {
+                    return false;
+                }
+                part++;
+                position = 0;
+            }
+            return true;
+        }
+
+        private void checkCancelled() throws IOException {
+            if (isCancelled(request)) {
+                throw new InterruptedIOException("Screenshot superseded");
+            }
+        }
+    }
+}
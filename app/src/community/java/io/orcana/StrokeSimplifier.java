@@ -0,0 +1,88 @@
+package io.orcana;
+
+/*
+ * Ramer-Douglas-Peucker simplification of packed x, y point arrays. Keeps the end points and
+ * every point further than epsilon from the segment between the points kept around it. The
+ * segment rather than the line through it, so scribbles that double back are not flattened.
+ *
+ * Iterative, with a stack of index ranges, so long strokes cannot overflow the call stack.
+ * Runs on the writer thread when a stroke reaches its point limit, never on the UI thread.
+ */
+final class StrokeSimplifier {
+    private StrokeSimplifier() {}
+
+    /*
+     * Simplifies count points from src into dst, which may be src itself, and returns how many
+     * points were kept. Y coordinates are multiplied by yScale when measuring distances, so
+     * strokes stored in normalized room space can be simplified in room pixels.
+     */
+    static int simplify(float[] src, int count, float epsilon, float yScale, float[] dst) {
+        if (count < 3) {
+            if (dst != src) {
+                System.arraycopy(src, 0, dst, 0, count * 2);
+            }
+            return count;
+        }
+
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        float epsilonSquared = epsilon * epsilon;
+
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            float ax = src[first * 2];
+            float ay = src[first * 2 + 1] * yScale;
+            float dx = src[last * 2] - ax;
+            float dy = src[last * 2 + 1] * yScale - ay;
+            float lengthSquared = dx * dx + dy * dy;
+
+            int farthest = -1;
+            float farthestDistance = epsilonSquared;
+            for (int i = first + 1; i < last; i++) {
+                float px = src[i * 2] - ax;
+                float py = src[i * 2 + 1] * yScale - ay;
+                // Squared distance to the closest point of the segment from first to last
+                float t = lengthSquared == 0f ? 0f : (px * dx + py * dy) / lengthSquared;
+                t = t < 0f ? 0f : t > 1f ? 1f : t;
+                float ex = px - t * dx;
+                float ey = py - t * dy;
+                float distance = ex * ex + ey * ey;
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                if (top + 4 > stack.length) {
+                    int[] grown = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, grown, 0, top);
+                    stack = grown;
+                }
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                // Never overtakes the read position, so simplifying in place is safe
+                dst[kept * 2] = src[i * 2];
+                dst[kept * 2 + 1] = src[i * 2 + 1];
+                kept++;
+            }
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,37 @@
+package io.orcana;
+
+/*
+ * Token bucket rate limiter: holds up to burst tokens, refilled continuously at
+ * refillPerSecond, and every message takes one. A sender can burst up to the bucket size and is
+ * then held to the refill rate.
+ *
+ * Not thread safe, DataTrackSender only uses its buckets while holding its lanes lock.
+ */
+final class TokenBucket {
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+    private final double burst;
+    private final double refillPerNano;
+    private double tokens;
+    private long lastRefillNanos;
+
+    TokenBucket(int burst, double refillPerSecond) {
+        this.burst = burst;
+        this.refillPerNano = refillPerSecond / NANOS_PER_SECOND;
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    boolean tryTake(long nowNanos) {
+        long elapsed = nowNanos - lastRefillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * refillPerNano);
+            lastRefillNanos = nowNanos;
+        }
+        if (tokens < 1d) {
+            return false;
+        }
+        tokens -= 1d;
+        return true;
+    }
+}
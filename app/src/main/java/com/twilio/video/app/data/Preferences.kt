@@ -70,6 +70,8 @@ object Preferences {
     const val MAX_VIDEO_BITRATE_DEFAULT = 0
     const val RECORD_PARTICIPANTS_ON_CONNECT = "pref_record_participants_on_connect"
     const val RECORD_PARTICIPANTS_ON_CONNECT_DEFAULT = false
+    const val RECORD_DATA_TRACKS = "pref_record_data_tracks"
+    const val RECORD_DATA_TRACKS_DEFAULT = false
     const val BANDWIDTH_PROFILE_MODE = "pref_bandwidth_profile_mode"
     val BANDWIDTH_PROFILE_MODE_DEFAULT = BandwidthProfileMode.COLLABORATION.name
     const val BANDWIDTH_PROFILE_MAX_SUBSCRIPTION_BITRATE = "pref_bandwidth_profile_max_subscription_bitrate"
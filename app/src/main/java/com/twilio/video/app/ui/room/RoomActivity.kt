@@ -69,6 +69,8 @@ import io.orcana.OTWrapper
 import io.uniflow.androidx.flow.onEvents
 import io.uniflow.androidx.flow.onStates
 import timber.log.Timber
+import java.io.FileDescriptor
+import java.io.PrintWriter
 import javax.inject.Inject
 
 class RoomActivity : BaseActivity() {
@@ -194,6 +196,14 @@ class RoomActivity : BaseActivity() {
         super.onSaveInstanceState(outState)
     }
 
+    // Data track metrics are part of adb shell dumpsys activity top
+    override fun dump(prefix: String, fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        super.dump(prefix, fd, writer, args)
+        if (::orcana.isInitialized) {
+            this.orcana.dump(prefix, writer)
+        }
+    }
+
     override fun onRequestPermissionsResult(
             requestCode: Int,
             permissions: Array<String>,
@@ -0,0 +1,57 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Before
+import org.junit.Test
+
+class AdminCommandsTest : BaseUnitTest() {
+
+    private val commands = AdminCommands()
+    private val executed = mutableListOf<String>()
+
+    @Before
+    fun setUp() {
+        commands.registerAddressed("kick") { executed.add("kick:${it.identity}") }
+        commands.registerBroadcast("broadcastSelectedParticipant") { executed.add("broadcast:${it.identity}") }
+        commands.setLocalParticipant("headset", "PA1")
+    }
+
+    @Test
+    fun `addressed commands should only run on the matching device`() {
+        commands.execute(message("kick", "other"))
+        commands.execute(message("kick", "headset"))
+
+        assertThat(executed, equalTo(listOf("kick:headset")))
+    }
+
+    @Test
+    fun `broadcast commands should run on every device`() {
+        commands.execute(message("broadcastSelectedParticipant", "other"))
+
+        assertThat(executed, equalTo(listOf("broadcast:other")))
+    }
+
+    @Test
+    fun `accepts should reject unknown actions and other devices`() {
+        assertThat(commands.accepts("kick", "headset"), equalTo(true))
+        assertThat(commands.accepts("kick", "other"), equalTo(false))
+        assertThat(commands.accepts("kick", null), equalTo(false))
+        assertThat(commands.accepts("unknown", "headset"), equalTo(false))
+    }
+
+    @Test
+    fun `addressed commands should be ignored before the room connects`() {
+        commands.setLocalParticipant(null, null)
+
+        commands.execute(message("kick", "headset"))
+
+        assertThat(executed, equalTo(emptyList()))
+    }
+
+    private fun message(action: String, identity: String?) = AdminMessage().apply {
+        this.action = action
+        this.identity = identity
+    }
+}
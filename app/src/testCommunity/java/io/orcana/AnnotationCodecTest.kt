@@ -0,0 +1,265 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.CoreMatchers.nullValue
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+
+class AnnotationCodecTest : BaseUnitTest() {
+
+    private val codec = AnnotationCodec()
+    private val handler = RecordingHandler()
+
+    @Test
+    fun `decode should read back an encoded circle`() {
+        val frame = frame(AnnotationCodec.VERSION, AnnotationCodec.OP_ADD_ANNOTATION) {
+            AnnotationCodec.writeVarInt(it, 7)
+            room(it, 1280f, 720f)
+            it.put(AnnotationRecord.CATEGORY_CIRCLE.toByte())
+            it.putInt(0xFFFF0000.toInt())
+            it.putFloat(512.5f)
+            it.putFloat(300f)
+            it.putFloat(40f)
+        }
+
+        assertThat(codec.decode(frame, handler), equalTo(true))
+
+        val circle = handler.added!!
+        assertThat(circle.id, equalTo("7"))
+        assertThat(circle.seq, equalTo(-1L))
+        assertThat(circle.category, equalTo(AnnotationRecord.CATEGORY_CIRCLE))
+        assertThat(circle.color, equalTo(0xFFFF0000.toInt()))
+        assertThat(circle.cx, equalTo(512.5f))
+        assertThat(circle.cy, equalTo(300f))
+        assertThat(circle.r, equalTo(40f))
+        assertThat(handler.roomWidth, equalTo(1280f))
+        assertThat(handler.roomHeight, equalTo(720f))
+        assertThat(frame.hasRemaining(), equalTo(false))
+    }
+
+    @Test
+    fun `decode should read back versioned text and strokes`() {
+        codec.decode(textFrame("über"), handler)
+
+        val text = handler.updated!!
+        assertThat(handler.version, equalTo(42L))
+        assertThat(text.id, equalTo("3"))
+        assertThat(text.seq, equalTo(9L))
+        assertThat(text.fontSize, equalTo(24))
+        assertThat(text.text, equalTo("über"))
+
+        codec.decode(strokeFrame(), handler)
+
+        val stroke = handler.added!!
+        assertThat(stroke.category, equalTo(AnnotationRecord.CATEGORY_STROKE))
+        assertThat(stroke.points.take(stroke.pointCount * 2), equalTo(listOf(10f, 20f, 30f, 40f)))
+    }
+
+    @Test
+    fun `decode should read back a snapshot`() {
+        val frame = frame(AnnotationCodec.VERSION_SCENE, AnnotationCodec.OP_SNAPSHOT) {
+            AnnotationCodec.writeVarInt(it, 5)
+            room(it, 1280f, 720f)
+            AnnotationCodec.writeVarInt(it, 2)
+            for (id in 1..2) {
+                AnnotationCodec.writeVarInt(it, id)
+                AnnotationCodec.writeVarInt(it, 1)
+                it.put(AnnotationRecord.CATEGORY_LINE.toByte())
+                it.putInt(0)
+                repeat(4) { i -> it.putFloat(i.toFloat()) }
+            }
+        }
+
+        codec.decode(frame, handler)
+
+        assertThat(handler.version, equalTo(5L))
+        assertThat(handler.snapshotIds, equalTo(listOf("1", "2")))
+    }
+
+    @Test
+    fun `decode should drop truncated frames`() {
+        for (frame in listOf(textFrame("hello"), strokeFrame())) {
+            for (length in 3 until frame.limit()) {
+                val truncated = frame.duplicate()
+                truncated.limit(length)
+
+                assertThat(codec.decode(truncated, handler), equalTo(true))
+            }
+        }
+
+        assertThat(handler.added, nullValue())
+        assertThat(handler.updated, nullValue())
+    }
+
+    @Test
+    fun `decode should leave frames with another magic to the JSON path`() {
+        val frame = ByteBuffer.wrap("""{"type":"RESTART_ANNOTATION"}""".toByteArray(StandardCharsets.UTF_8))
+
+        assertThat(codec.decode(frame, handler), equalTo(false))
+        assertThat(frame.position(), equalTo(0))
+    }
+
+    @Test
+    fun `decode should drop frames with an unknown version`() {
+        val frame = frame(0x7F, AnnotationCodec.OP_RESTART_ANNOTATION) {}
+
+        assertThat(codec.decode(frame, handler), equalTo(true))
+        assertThat(handler.restarts, equalTo(0))
+    }
+
+    @Test
+    fun `decode should drop negative lengths and counts`() {
+        val text = frame(AnnotationCodec.VERSION, AnnotationCodec.OP_ADD_ANNOTATION) {
+            AnnotationCodec.writeVarInt(it, 1)
+            room(it, 1280f, 720f)
+            it.put(AnnotationRecord.CATEGORY_TEXT.toByte())
+            it.putInt(0)
+            it.putFloat(10f)
+            it.putFloat(10f)
+            AnnotationCodec.writeVarInt(it, 24)
+            AnnotationCodec.writeVarInt(it, -1)
+            it.put(ByteArray(8))
+        }
+        val points = frame(AnnotationCodec.VERSION, AnnotationCodec.OP_APPEND_POINTS) {
+            AnnotationCodec.writeVarInt(it, 1)
+            room(it, 1280f, 720f)
+            AnnotationCodec.writeVarInt(it, -1)
+            it.put(ByteArray(16))
+        }
+        val snapshot = frame(AnnotationCodec.VERSION_SCENE, AnnotationCodec.OP_SNAPSHOT) {
+            AnnotationCodec.writeVarInt(it, 1)
+            room(it, 1280f, 720f)
+            AnnotationCodec.writeVarInt(it, -1)
+            it.put(ByteArray(16))
+        }
+
+        for (frame in listOf(text, points, snapshot)) {
+            assertThat(codec.decode(frame, handler), equalTo(true))
+        }
+
+        assertThat(handler.added, nullValue())
+        assertThat(handler.appends, equalTo(0))
+        assertThat(handler.snapshotIds, nullValue())
+    }
+
+    @Test
+    fun `decode should drop shapes without room dimensions`() {
+        val frame = frame(AnnotationCodec.VERSION, AnnotationCodec.OP_ADD_ANNOTATION) {
+            AnnotationCodec.writeVarInt(it, 1)
+            room(it, 0f, 720f)
+            it.put(AnnotationRecord.CATEGORY_CIRCLE.toByte())
+            it.putInt(0)
+            repeat(3) { _ -> it.putFloat(10f) }
+        }
+
+        codec.decode(frame, handler)
+
+        assertThat(handler.added, nullValue())
+    }
+
+    private fun textFrame(text: String): ByteBuffer {
+        val bytes = text.toByteArray(StandardCharsets.UTF_8)
+        return frame(AnnotationCodec.VERSION_SCENE, AnnotationCodec.OP_UPDATE_ANNOTATION) {
+            AnnotationCodec.writeVarInt(it, 42)
+            AnnotationCodec.writeVarInt(it, 3)
+            AnnotationCodec.writeVarInt(it, 9)
+            room(it, 1280f, 720f)
+            it.put(AnnotationRecord.CATEGORY_TEXT.toByte())
+            it.putInt(0)
+            it.putFloat(100f)
+            it.putFloat(200f)
+            AnnotationCodec.writeVarInt(it, 24)
+            AnnotationCodec.writeVarInt(it, bytes.size)
+            it.put(bytes)
+        }
+    }
+
+    private fun strokeFrame() = frame(AnnotationCodec.VERSION, AnnotationCodec.OP_ADD_ANNOTATION) {
+        AnnotationCodec.writeVarInt(it, 4)
+        room(it, 1280f, 720f)
+        it.put(AnnotationRecord.CATEGORY_STROKE.toByte())
+        it.putInt(0)
+        AnnotationCodec.writeVarInt(it, 2)
+        listOf(10f, 20f, 30f, 40f).forEach { value -> it.putFloat(value) }
+    }
+
+    private fun frame(version: Byte, opcode: Byte, body: (ByteBuffer) -> Unit): ByteBuffer {
+        val frame = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN)
+        frame.put(AnnotationCodec.MAGIC)
+        frame.put(version)
+        frame.put(opcode)
+        body(frame)
+        frame.flip()
+        return frame
+    }
+
+    private fun room(frame: ByteBuffer, width: Float, height: Float) {
+        frame.putFloat(width)
+        frame.putFloat(height)
+    }
+
+    private class RecordingHandler : DataTrackMessageHandler {
+        var added: AnnotationRecord? = null
+        var updated: AnnotationRecord? = null
+        var appends = 0
+        var restarts = 0
+        var version = -1L
+        var snapshotIds: List<String>? = null
+        var roomWidth = 0f
+        var roomHeight = 0f
+
+        override fun addAnnotation(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {
+            added = copy(annotation, roomWidth, roomHeight)
+        }
+
+        override fun updateAnnotation(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {
+            updated = copy(annotation, roomWidth, roomHeight)
+        }
+
+        override fun appendPoints(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {
+            appends++
+        }
+
+        override fun removeAnnotation(id: String, seq: Long) {}
+
+        override fun restartAnnotation() {
+            restarts++
+        }
+
+        override fun annotationSnapshot(
+            version: Long,
+            annotations: List<AnnotationRecord>,
+            roomWidth: Float,
+            roomHeight: Float
+        ) {
+            this.version = version
+            snapshotIds = annotations.map { it.id }
+        }
+
+        override fun acceptsAnnotationVersion(version: Long): Boolean {
+            this.version = version
+            return true
+        }
+
+        override fun updateScreenshot(id: String?, src: String?) {}
+
+        override fun showScreenshot(id: String) {}
+
+        override fun screenshotChunk(id: String, seq: Int, total: Int, data: String, preview: String?) {}
+
+        override fun screenshotTile(frameWidth: Int, frameHeight: Int, tileSize: Int, tile: Int, src: String) {}
+
+        override fun admin(message: AdminMessage) {}
+
+        // The codec reuses its record, so keep a copy
+        private fun copy(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float): AnnotationRecord {
+            this.roomWidth = roomWidth
+            this.roomHeight = roomHeight
+            return AnnotationRecord().also { it.set(annotation) }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.orcana
+
+import android.graphics.RectF
+import androidx.test.core.app.ApplicationProvider
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.CoreMatchers.nullValue
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class AnnotationGridTest : BaseUnitTest() {
+
+    private val view = AnnotationView(ApplicationProvider.getApplicationContext<TestApp>())
+    private val grid = AnnotationGrid()
+
+    @Test
+    fun `query should report shapes spanning several cells once`() {
+        grid.update(circle("big", 640f, 640f, 600f))
+        grid.update(circle("small", 100f, 100f, 10f))
+        grid.update(circle("far", 1200f, 1200f, 10f))
+
+        val found = mutableListOf<AnnotationView.Shape>()
+        grid.query(RectF(0f, 0f, 0.5f, 0.5f), found)
+
+        assertThat(found.map { it.id }.sorted(), equalTo(listOf("big", "small")))
+    }
+
+    @Test
+    fun `hit test should return the most recently added shape`() {
+        grid.update(circle("1", 640f, 640f, 100f))
+        grid.update(circle("2", 640f, 640f, 100f))
+        grid.update(circle("1", 640f, 640f, 100f))
+
+        assertThat(grid.hitTest(0.5f, 0.5f)?.id, equalTo("2"))
+        assertThat(grid.hitTest(0.05f, 0.05f), nullValue())
+    }
+
+    @Test
+    fun `updates should move shapes between cells and tiles`() {
+        grid.update(circle("1", 100f, 100f, 10f))
+        val tile = grid.tileOf("1")
+
+        assertThat(grid.update(circle("1", 1200f, 1200f, 10f)), equalTo(tile))
+
+        assertThat(grid.hitTest(100f / 1280f, 100f / 1280f), nullValue())
+        assertThat(grid.hitTest(1200f / 1280f, 1200f / 1280f)?.id, equalTo("1"))
+        assertThat(grid.tileOf("1"), equalTo(AnnotationGrid.TILE_COUNT - 1))
+        assertThat(grid.tile(tile).isEmpty(), equalTo(true))
+    }
+
+    @Test
+    fun `remove should drop the shape from every cell`() {
+        grid.update(circle("1", 640f, 640f, 600f))
+
+        grid.remove("1")
+
+        val found = mutableListOf<AnnotationView.Shape>()
+        grid.query(RectF(0f, 0f, 1f, 1f), found)
+        assertThat(found.isEmpty(), equalTo(true))
+        assertThat(grid.size(), equalTo(0))
+    }
+
+    // A square room, so y fractions of the room are the same in normalized room space
+    private fun circle(id: String, cx: Float, cy: Float, r: Float) = view.Circle(AnnotationRecord().apply {
+        reset()
+        this.id = id
+        this.cx = cx
+        this.cy = cy
+        this.r = r
+    }, 1280f, 1280f)
+}
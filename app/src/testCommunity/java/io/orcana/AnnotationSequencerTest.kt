@@ -0,0 +1,52 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+
+class AnnotationSequencerTest : BaseUnitTest() {
+
+    private val sequencer = AnnotationSequencer()
+
+    @Test
+    fun `accept should drop changes that are not newer than the last one applied`() {
+        assertThat(sequencer.accept("1", 2), equalTo(true))
+        assertThat(sequencer.accept("1", 1), equalTo(false))
+        assertThat(sequencer.accept("1", 2), equalTo(false))
+        assertThat(sequencer.accept("1", 3), equalTo(true))
+        assertThat(sequencer.accept("2", 1), equalTo(true))
+        assertThat(sequencer.droppedCount, equalTo(2L))
+    }
+
+    @Test
+    fun `accept should not resurrect a removed shape`() {
+        sequencer.accept("1", 1)
+        sequencer.accept("1", 3) // REMOVE
+
+        assertThat(sequencer.accept("1", 2), equalTo(false))
+    }
+
+    @Test
+    fun `accept should always apply unsequenced changes`() {
+        sequencer.accept("1", 5)
+
+        assertThat(sequencer.accept("1", -1), equalTo(true))
+    }
+
+    @Test
+    fun `reset should start over from the snapshot sequence numbers`() {
+        sequencer.accept("1", 9)
+        sequencer.accept("2", 9)
+        val record = AnnotationRecord().apply {
+            id = "1"
+            seq = 4
+        }
+
+        sequencer.reset(listOf(record))
+
+        assertThat(sequencer.accept("1", 4), equalTo(false))
+        assertThat(sequencer.accept("1", 5), equalTo(true))
+        assertThat(sequencer.accept("2", 1), equalTo(true))
+    }
+}
@@ -0,0 +1,39 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class AnnotationStyleCacheTest : BaseUnitTest() {
+
+    @Test
+    fun `colors should parse like Color parseColor`() {
+        assertThat(AnnotationStyleCache.color("#ff0000"), equalTo(0xffff0000.toInt()))
+        assertThat(AnnotationStyleCache.color("#ff0000"), equalTo(0xffff0000.toInt()))
+    }
+
+    @Test
+    fun `font sizes should accept pixel units`() {
+        assertThat(AnnotationStyleCache.fontSize("24px"), equalTo(24))
+        assertThat(AnnotationStyleCache.fontSize("24"), equalTo(24))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun `invalid colors should still throw`() {
+        AnnotationStyleCache.color("not a color")
+    }
+
+    @Test
+    fun `the cache should start over once full`() {
+        for (i in 0..AnnotationStyleCache.MAX_ENTRIES * 2) {
+            assertThat(AnnotationStyleCache.fontSize("${i}px"), equalTo(i))
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package io.orcana
+
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Path
+import androidx.test.core.app.ApplicationProvider
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import java.lang.management.ManagementFactory
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class AnnotationViewAllocationTest : BaseUnitTest() {
+
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    private lateinit var shapes: Array<AnnotationView.Shape>
+
+    @Before
+    fun setUp() {
+        val view = AnnotationView(ApplicationProvider.getApplicationContext<TestApp>())
+        view.layout(0, 0, 1280, 720)
+        val record = AnnotationRecord().apply {
+            reset()
+            id = "1"
+            color = Color.RED
+            cx = 100f
+            cy = 100f
+            r = 20f
+            x = 10f
+            y = 20f
+            width = 30f
+            height = 40f
+            x1 = 0f
+            y1 = 0f
+            x2 = 50f
+            y2 = 60f
+            fontSize = 24
+            text = "annotation"
+        }
+        shapes = arrayOf(
+            view.Circle(record, 1280f, 720f),
+            view.Rect(record, 1280f, 720f),
+            view.Line(record, 1280f, 720f),
+            view.Text(record, 1280f, 720f)
+        )
+    }
+
+    @Test
+    fun `onDraw should not allocate`() {
+        val canvas = CountingCanvas()
+        repeat(WARM_UP_FRAMES) { drawAll(canvas) }
+
+        val thread = Thread.currentThread().id
+        // getThreadAllocatedBytes may allocate itself, measure that overhead first
+        val overheadStart = threadMXBean.getThreadAllocatedBytes(thread)
+        val overhead = threadMXBean.getThreadAllocatedBytes(thread) - overheadStart
+
+        val start = threadMXBean.getThreadAllocatedBytes(thread)
+        repeat(MEASURED_FRAMES) { drawAll(canvas) }
+        val allocated = threadMXBean.getThreadAllocatedBytes(thread) - start - overhead
+
+        assertThat(canvas.draws, equalTo((WARM_UP_FRAMES + MEASURED_FRAMES) * DRAWS_PER_FRAME))
+        assertThat(allocated, equalTo(0L))
+    }
+
+    private fun drawAll(canvas: Canvas) {
+        for (shape in shapes) {
+            shape.onDraw(canvas)
+        }
+    }
+
+    // Keeps the draw calls themselves out of the measurement
+    private class CountingCanvas : Canvas() {
+        var draws = 0
+
+        override fun drawCircle(cx: Float, cy: Float, radius: Float, paint: Paint) {
+            draws++
+        }
+
+        override fun drawRect(left: Float, top: Float, right: Float, bottom: Float, paint: Paint) {
+            draws++
+        }
+
+        override fun drawLine(startX: Float, startY: Float, stopX: Float, stopY: Float, paint: Paint) {
+            draws++
+        }
+
+        override fun drawPath(path: Path, paint: Paint) {
+            draws++
+        }
+
+        override fun drawText(text: String, x: Float, y: Float, paint: Paint) {
+            draws++
+        }
+    }
+
+    companion object {
+        private const val WARM_UP_FRAMES = 1_000
+        private const val MEASURED_FRAMES = 10_000
+        // Circle, rect, line and arrow head, text
+        private const val DRAWS_PER_FRAME = 5
+    }
+}
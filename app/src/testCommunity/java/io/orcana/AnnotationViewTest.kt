@@ -0,0 +1,194 @@
+package io.orcana
+
+import android.graphics.Canvas
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.RectF
+import android.os.SystemClock
+import androidx.test.core.app.ApplicationProvider
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class AnnotationViewTest : BaseUnitTest() {
+
+    private val view = AnnotationView(ApplicationProvider.getApplicationContext<TestApp>())
+
+    @Test
+    fun `shapes should be stored in normalized room coordinates`() {
+        val circle = view.Circle(circle(cx = 640f, cy = 180f, r = 128f), 1280f, 720f)
+
+        assertThat(circle.cx, equalTo(0.5f))
+        // Both axes are in room widths
+        assertThat(circle.cy, equalTo(0.140625f))
+        assertThat(circle.radius, equalTo(0.1f))
+    }
+
+    @Test
+    fun `circles should stay round in a view with another aspect ratio than the room`() {
+        view.layout(0, 0, 1000, 1000)
+        view.addShape(circle(cx = 640f, cy = 360f, r = 100f).apply {
+            category = AnnotationRecord.CATEGORY_CIRCLE
+        }, 1280f, 720f)
+        view.publishShapes()
+        val canvas = RecordingCanvas()
+
+        view.draw(canvas)
+
+        val drawn = RectF(canvas.cx - canvas.radius, canvas.cy - canvas.radius,
+            canvas.cx + canvas.radius, canvas.cy + canvas.radius)
+        canvas.matrix.mapRect(drawn)
+        assertThat(drawn.width(), equalTo(drawn.height()))
+        // Fitted to the view's width and centered vertically
+        assertThat(drawn.centerX(), equalTo(500f))
+        assertThat(drawn.centerY(), equalTo(500f))
+    }
+
+    @Test
+    fun `resizing the view should not change shape geometry`() {
+        view.layout(0, 0, 1280, 720)
+        val line = view.Line(AnnotationRecord().apply {
+            reset()
+            id = "1"
+            x1 = 128f
+            y1 = 72f
+            x2 = 640f
+            y2 = 360f
+        }, 1280f, 720f)
+        val bounds = RectF(line.bounds)
+
+        view.layout(0, 0, 720, 1280)
+
+        assertThat(line.bounds, equalTo(bounds))
+        assertThat(line.x2, equalTo(0.5f))
+    }
+
+    @Test
+    fun `text should be measured once per font size`() {
+        val record = text("first\nsecond", fontSize = 24)
+        val text = view.Text(record, 1280f, 720f)
+        val layout = text.layout
+
+        record.x = 640f
+        text.updateValues(record, 1280f, 720f)
+        assertThat(text.layout === layout, equalTo(true))
+        assertThat(text.layout.lines.toList(), equalTo(listOf("first", "second")))
+        assertThat(text.bounds.left > 0.49f, equalTo(true))
+
+        record.fontSize = 32
+        text.updateValues(record, 1280f, 720f)
+        assertThat(text.layout === layout, equalTo(false))
+        assertThat(text.copy().let { (it as AnnotationView.Text).layout === text.layout }, equalTo(true))
+    }
+
+    @Test
+    fun `live shapes should settle once they stop changing`() {
+        view.addShape(circle(cx = 640f, cy = 180f, r = 128f).apply {
+            category = AnnotationRecord.CATEGORY_CIRCLE
+        }, 1280f, 720f)
+        view.publishShapes()
+        assertThat(view.settleDelayMillis(), equalTo(AnnotationScene.SETTLE_MILLIS))
+
+        SystemClock.sleep(AnnotationScene.SETTLE_MILLIS)
+        view.publishShapes()
+
+        assertThat(view.settleDelayMillis(), equalTo(-1L))
+    }
+
+    @Test
+    fun `appended points should extend the stroke and its bounds`() {
+        val record = stroke(100f, 100f, 200f, 100f)
+        val stroke = view.Stroke(record, 1280f, 720f)
+        val shared = stroke.points
+
+        stroke.append(stroke(640f, 360f), 1280f, 720f)
+
+        assertThat(stroke.pointCount, equalTo(3))
+        assertThat(stroke.points === shared, equalTo(true))
+        assertThat(stroke.bounds.contains(0.5f, 0.28125f), equalTo(true))
+        assertThat((stroke.copy() as AnnotationView.Stroke).points === shared, equalTo(true))
+    }
+
+    @Test
+    fun `stroke copies should share sealed path segments`() {
+        val stroke = view.Stroke(stroke(0f, 0f), 1280f, 720f)
+        val record = AnnotationRecord().apply { reset() }
+        for (i in 1..AnnotationView.STROKE_SEGMENT_POINTS * 2) {
+            record.pointCount = 0
+            record.addPoint(i.toFloat(), 100f)
+            stroke.append(record, 1280f, 720f)
+        }
+
+        val copy = stroke.copy() as AnnotationView.Stroke
+
+        assertThat(copy.segments.size, equalTo(2))
+        assertThat(copy.segments[0] === stroke.segments[0], equalTo(true))
+        assertThat(copy.path === stroke.path, equalTo(false))
+    }
+
+    @Test
+    fun `long strokes should be simplified to a bounded number of points`() {
+        val stroke = view.Stroke(stroke(0f, 0f), 1280f, 720f)
+        val record = AnnotationRecord().apply { reset() }
+
+        for (i in 1..AnnotationView.MAX_STROKE_POINTS * 3) {
+            record.pointCount = 0
+            record.addPoint(i % 1280f, 100f)
+            stroke.append(record, 1280f, 720f)
+        }
+
+        assertThat(stroke.pointCount <= AnnotationView.MAX_STROKE_POINTS, equalTo(true))
+    }
+
+    private fun stroke(vararg points: Float) = AnnotationRecord().apply {
+        reset()
+        id = "1"
+        category = AnnotationRecord.CATEGORY_STROKE
+        for (i in points.indices step 2) {
+            addPoint(points[i], points[i + 1])
+        }
+    }
+
+    private fun text(value: String, fontSize: Int) = AnnotationRecord().apply {
+        reset()
+        id = "1"
+        category = AnnotationRecord.CATEGORY_TEXT
+        text = value
+        this.fontSize = fontSize
+        x = 128f
+        y = 72f
+    }
+
+    // Keeps the transform the shapes are drawn with and the last circle
+    private class RecordingCanvas : Canvas() {
+        val matrix = Matrix()
+        var cx = 0f
+        var cy = 0f
+        var radius = 0f
+
+        override fun concat(matrix: Matrix?) {
+            matrix?.let { this.matrix.postConcat(it) }
+        }
+
+        override fun drawCircle(cx: Float, cy: Float, radius: Float, paint: Paint) {
+            this.cx = cx
+            this.cy = cy
+            this.radius = radius
+        }
+    }
+
+    private fun circle(cx: Float, cy: Float, r: Float) = AnnotationRecord().apply {
+        reset()
+        id = "1"
+        this.cx = cx
+        this.cy = cy
+        this.r = r
+    }
+}
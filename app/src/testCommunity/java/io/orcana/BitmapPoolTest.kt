@@ -0,0 +1,79 @@
+package io.orcana
+
+import android.content.ComponentCallbacks2
+import android.graphics.Bitmap
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.CoreMatchers.nullValue
+import org.hamcrest.CoreMatchers.sameInstance
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class BitmapPoolTest : BaseUnitTest() {
+
+    // Room for four 100x100 ARGB_8888 bitmaps
+    private val pool = BitmapPool(4 * BYTES)
+
+    @Test
+    fun `released bitmaps should be taken again`() {
+        val bitmap = bitmap(100)
+        pool.release(bitmap)
+
+        assertThat(pool.take(BYTES), sameInstance(bitmap))
+        assertThat(pool.take(BYTES), nullValue())
+        assertThat(pool.pooledBytes, equalTo(0L))
+    }
+
+    @Test
+    fun `take should not hand out bitmaps that are too small or far too large`() {
+        pool.release(bitmap(50))
+        pool.release(bitmap(190))
+
+        assertThat(pool.take(BYTES), nullValue())
+        assertThat(pool.pooledBytes, equalTo((BYTES / 4 + 190 * 190 * 4).toLong()))
+    }
+
+    @Test
+    fun `the largest bitmaps should be dropped first over the budget`() {
+        val small = bitmap(50)
+        pool.release(small)
+        pool.release(bitmap(100))
+        pool.release(bitmap(100))
+        pool.release(bitmap(100))
+        pool.release(bitmap(100))
+
+        assertThat(pool.pooledBytes, equalTo((BYTES / 4 + BYTES * 3).toLong()))
+        assertThat(pool.take(BYTES / 4), sameInstance(small))
+    }
+
+    @Test
+    fun `immutable bitmaps should not be pooled`() {
+        pool.release(Bitmap.createBitmap(IntArray(100 * 100), 100, 100, Bitmap.Config.ARGB_8888))
+
+        assertThat(pool.pooledBytes, equalTo(0L))
+    }
+
+    @Test
+    fun `trim memory should shrink the pool by level`() {
+        repeat(4) { pool.release(bitmap(100)) }
+
+        pool.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+        assertThat(pool.pooledBytes, equalTo(4L * BYTES))
+        pool.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+        assertThat(pool.pooledBytes, equalTo(2L * BYTES))
+        pool.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+        assertThat(pool.pooledBytes, equalTo(0L))
+    }
+
+    private fun bitmap(size: Int) = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888)
+
+    companion object {
+        private const val BYTES = 100 * 100 * 4
+    }
+}
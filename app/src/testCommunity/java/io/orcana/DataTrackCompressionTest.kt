@@ -0,0 +1,65 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.CoreMatchers.nullValue
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+
+class DataTrackCompressionTest : BaseUnitTest() {
+
+    private val compression = DataTrackCompression()
+    private val message = """{"type":"UPDATE_ANNOTATION","version":12,"annotation":{"id":"7","seq":3,""" +
+        """"category":"circle","color":"#ff0000","cx":512.5,"cy":300,"r":40},""" +
+        """"roomDimensions":{"width":1280,"height":720}}"""
+
+    @Test
+    fun `inflate should return the compressed message`() {
+        val envelope = DataTrackCompression.compress(message.toByteArray(StandardCharsets.UTF_8), true)
+
+        val payload = compression.inflate(envelope)!!
+
+        assertThat(DataTrackCompression.isCompressed(envelope), equalTo(true))
+        assertThat(DataTrackCompression.isText(envelope), equalTo(true))
+        assertThat(StandardCharsets.UTF_8.decode(payload).toString(), equalTo(message))
+        assertThat(envelope.position(), equalTo(0))
+    }
+
+    @Test
+    fun `the dictionary should make small annotation messages much smaller`() {
+        val envelope = DataTrackCompression.compress(message.toByteArray(StandardCharsets.UTF_8), true)
+
+        assertThat(envelope.remaining() * 2 < message.length, equalTo(true))
+    }
+
+    @Test
+    fun `inflate should reject a corrupt envelope`() {
+        val envelope = DataTrackCompression.compress(message.toByteArray(StandardCharsets.UTF_8), true)
+        envelope.put(envelope.limit() - 1, 0.toByte())
+
+        assertThat(compression.inflate(envelope), nullValue())
+    }
+
+    @Test
+    fun `inflate should reject lengths over the limit`() {
+        val envelope = ByteBuffer.allocate(16)
+        envelope.put(AnnotationCodec.MAGIC)
+        envelope.put(DataTrackCompression.VERSION_COMPRESSED)
+        envelope.put(DataTrackCompression.FLAG_TEXT)
+        AnnotationCodec.writeVarInt(envelope, DataTrackCompression.MAX_INFLATED_BYTES + 1)
+        envelope.flip()
+
+        assertThat(compression.inflate(envelope), nullValue())
+    }
+
+    @Test
+    fun `inflate should return null once released`() {
+        val envelope = DataTrackCompression.compress(message.toByteArray(StandardCharsets.UTF_8), true)
+
+        compression.release()
+
+        assertThat(compression.inflate(envelope), nullValue())
+    }
+}
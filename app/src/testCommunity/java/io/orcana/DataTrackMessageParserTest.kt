@@ -0,0 +1,306 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import java.lang.management.ManagementFactory
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.CoreMatchers.nullValue
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class DataTrackMessageParserTest : BaseUnitTest() {
+
+    private val handler = RecordingHandler()
+    private val parser = DataTrackMessageParser(handler)
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    @Test
+    fun `parse should route an update regardless of key order`() {
+        parser.parse(
+            """{"annotation":{"id":"7","x1":10,"y1":20,"x2":30,"y2":40},""" +
+                """"roomDimensions":{"width":640,"height":480},"type":"UPDATE_ANNOTATION"}"""
+        )
+
+        assertThat(handler.updates, equalTo(1))
+        assertThat(handler.id, equalTo("7"))
+        assertThat(handler.x2, equalTo(30f))
+        assertThat(handler.roomWidth, equalTo(640f))
+        assertThat(handler.roomHeight, equalTo(480f))
+    }
+
+    @Test
+    fun `parse should accept pixel font sizes`() {
+        parser.parse(
+            """{"type":"ADD_ANNOTATION","roomDimensions":{"width":640,"height":480},""" +
+                """"annotation":{"id":"1","category":"text","color":"#ff0000","x":1,"y":2,""" +
+                """"fontSize":"24px","text":"hello"}}"""
+        )
+
+        assertThat(handler.adds, equalTo(1))
+        assertThat(handler.category, equalTo(AnnotationRecord.CATEGORY_TEXT))
+        assertThat(handler.fontSize, equalTo(24))
+        assertThat(handler.text, equalTo("hello"))
+    }
+
+    @Test
+    fun `parse should read admin fields and hide a null screenshot`() {
+        parser.parse("""{"type":"ADMIN","action":"mute","identity":"headset"}""")
+        parser.parse("""{"type":"UPDATE_SCREENSHOT","screenshot":{"src":null}}""")
+
+        assertThat(handler.action, equalTo("mute"))
+        assertThat(handler.identity, equalTo("headset"))
+        assertThat(handler.screenshots, equalTo(1))
+        assertThat(handler.screenshotSrc, nullValue())
+    }
+
+    @Test
+    fun `parse should read screenshot chunks`() {
+        parser.parse(
+            """{"type":"SCREENSHOT_CHUNK","screenshot":{"id":"7","seq":2,"total":3,""" +
+                """"data":"QUJD","preview":"data:image/jpeg;base64,REVG"}}"""
+        )
+
+        assertThat(handler.chunkId, equalTo("7"))
+        assertThat(handler.chunkSeq, equalTo(2))
+        assertThat(handler.chunkTotal, equalTo(3))
+        assertThat(handler.chunkPreview, equalTo("data:image/jpeg;base64,REVG"))
+    }
+
+    @Test
+    fun `parse should read screenshot ids`() {
+        parser.parse(
+            """{"type":"UPDATE_SCREENSHOT","screenshot":{"id":"xray-2",""" +
+                """"src":"data:image/jpeg;base64,QUJD"}}"""
+        )
+        parser.parse("""{"type":"SHOW_SCREENSHOT","screenshot":{"id":"xray-1"}}""")
+
+        assertThat(handler.screenshotId, equalTo("xray-2"))
+        assertThat(handler.screenshotSrc, equalTo("data:image/jpeg;base64,QUJD"))
+        assertThat(handler.shownScreenshotId, equalTo("xray-1"))
+    }
+
+    @Test
+    fun `parse should read screenshot tiles`() {
+        parser.parse(
+            """{"type":"SCREENSHOT_TILE","screenshot":{"width":1920,"height":1080,""" +
+                """"tileSize":256,"tile":9,"src":"data:image/jpeg;base64,QUJD"}}"""
+        )
+
+        assertThat(handler.tile, equalTo(9))
+        assertThat(handler.tileFrameWidth, equalTo(1920))
+        assertThat(handler.screenshotSrc, equalTo("data:image/jpeg;base64,QUJD"))
+    }
+
+    @Test
+    fun `parse should stop reading admin messages addressed to another device`() {
+        handler.localIdentity = "headset"
+
+        // Truncated after the identity, only parsed further if the command was accepted
+        parser.parse("""{"type":"ADMIN","action":"kick","identity":"other","caseCreatorSid":""")
+
+        assertThat(handler.action, nullValue())
+    }
+
+    @Test
+    fun `parse should dispatch a snapshot in one call regardless of key order`() {
+        parser.parse(
+            """{"type":"ANNOTATION_SNAPSHOT","annotations":[""" +
+                """{"id":"1","category":"circle","cx":1,"cy":2,"r":3},""" +
+                """{"id":"2","category":"line","x1":0,"y1":0,"x2":5,"y2":5}],""" +
+                """"roomDimensions":{"width":1280,"height":720},"version":7}"""
+        )
+
+        assertThat(handler.snapshotVersion, equalTo(7L))
+        assertThat(handler.snapshotIds, equalTo(listOf("1", "2")))
+        assertThat(handler.roomWidth, equalTo(1280f))
+    }
+
+    @Test
+    fun `parse should drop stale versioned deltas`() {
+        handler.latestVersion = 5
+
+        parser.parse("""{"type":"REMOVE_ANNOTATION","version":5,"annotation":{"id":"1"}}""")
+        parser.parse("""{"type":"REMOVE_ANNOTATION","version":6,"annotation":{"id":"2"}}""")
+        parser.parse("""{"type":"REMOVE_ANNOTATION","annotation":{"id":"3"}}""")
+
+        assertThat(handler.removed, equalTo(listOf("2", "3")))
+    }
+
+    @Test
+    fun `parse should pass annotation sequence numbers through`() {
+        parser.parse("""{"type":"REMOVE_ANNOTATION","annotation":{"seq":42,"id":"1"}}""")
+
+        assertThat(handler.removedSeq, equalTo(42L))
+    }
+
+    @Test
+    fun `parse should read stroke points`() {
+        parser.parse(
+            """{"type":"ADD_ANNOTATION","annotation":{"id":"1","category":"stroke","points":[1,2,3,4]},""" +
+                """"roomDimensions":{"width":1280,"height":720}}"""
+        )
+        parser.parse(
+            """{"type":"APPEND_POINTS","annotation":{"id":"1","points":[5,6]},""" +
+                """"roomDimensions":{"width":1280,"height":720}}"""
+        )
+
+        assertThat(handler.adds, equalTo(1))
+        assertThat(handler.appends, equalTo(1))
+        assertThat(handler.points, equalTo(listOf(5f, 6f)))
+    }
+
+    @Test
+    fun `parse should drop annotations without room dimensions`() {
+        parser.parse("""{"type":"ADD_ANNOTATION","annotation":{"id":"1","category":"circle"}}""")
+
+        assertThat(handler.adds, equalTo(0))
+    }
+
+    @Test
+    fun `parse should allocate a bounded amount per message`() {
+        val messages = Array(256) { i ->
+            """{"type":"UPDATE_ANNOTATION","annotation":{"id":"$i","category":"line",""" +
+                """"color":"#00ff00","x1":${i + 0.5},"y1":${i * 2},"x2":${i * 3},"y2":${i * 4}},""" +
+                """"roomDimensions":{"width":1280,"height":720}}"""
+        }
+        repeat(WARM_UP_ROUNDS) { messages.forEach(parser::parse) }
+
+        val thread = Thread.currentThread().id
+        val start = threadMXBean.getThreadAllocatedBytes(thread)
+        repeat(MEASURED_ROUNDS) { messages.forEach(parser::parse) }
+        val perMessage = (threadMXBean.getThreadAllocatedBytes(thread) - start) / (MEASURED_ROUNDS * messages.size)
+
+        assertThat(handler.updates, equalTo((WARM_UP_ROUNDS + MEASURED_ROUNDS) * messages.size))
+        assertThat("$perMessage bytes per message", perMessage < MAX_BYTES_PER_MESSAGE, equalTo(true))
+    }
+
+    private class RecordingHandler : DataTrackMessageHandler {
+        var adds = 0
+        var updates = 0
+        var appends = 0
+        var points: List<Float> = emptyList()
+        var screenshots = 0
+        var id: String? = null
+        var category = AnnotationRecord.CATEGORY_UNKNOWN
+        var x2 = 0f
+        var fontSize = 0
+        var text: String? = null
+        var roomWidth = 0f
+        var roomHeight = 0f
+        var screenshotSrc: String? = null
+        var screenshotId: String? = null
+        var shownScreenshotId: String? = null
+        var action: String? = null
+        var identity: String? = null
+        var chunkId: String? = null
+        var chunkSeq = -1
+        var chunkTotal = 0
+        var chunkPreview: String? = null
+        var tileFrameWidth = 0
+        var tile = -1
+        var localIdentity: String? = null
+        val removed = mutableListOf<String>()
+        var snapshotVersion = -1L
+        var snapshotIds: List<String> = emptyList()
+        var latestVersion = -1L
+        var removedSeq = -1L
+
+        override fun addAnnotation(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {
+            adds++
+            record(annotation, roomWidth, roomHeight)
+        }
+
+        override fun updateAnnotation(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {
+            updates++
+            record(annotation, roomWidth, roomHeight)
+        }
+
+        override fun appendPoints(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {
+            appends++
+            record(annotation, roomWidth, roomHeight)
+        }
+
+        override fun removeAnnotation(id: String, seq: Long) {
+            removed.add(id)
+            removedSeq = seq
+        }
+
+        override fun restartAnnotation() {}
+
+        override fun annotationSnapshot(
+            version: Long,
+            annotations: List<AnnotationRecord>,
+            roomWidth: Float,
+            roomHeight: Float
+        ) {
+            snapshotVersion = version
+            snapshotIds = annotations.map { it.id }
+            this.roomWidth = roomWidth
+            this.roomHeight = roomHeight
+        }
+
+        override fun acceptsAnnotationVersion(version: Long): Boolean {
+            if (version <= latestVersion) {
+                return false
+            }
+            latestVersion = version
+            return true
+        }
+
+        override fun updateScreenshot(id: String?, src: String?) {
+            screenshots++
+            screenshotId = id
+            screenshotSrc = src
+        }
+
+        override fun showScreenshot(id: String) {
+            shownScreenshotId = id
+        }
+
+        override fun screenshotChunk(id: String, seq: Int, total: Int, data: String, preview: String?) {
+            chunkId = id
+            chunkSeq = seq
+            chunkTotal = total
+            chunkPreview = preview
+        }
+
+        override fun screenshotTile(frameWidth: Int, frameHeight: Int, tileSize: Int, tile: Int, src: String) {
+            tileFrameWidth = frameWidth
+            this.tile = tile
+            screenshotSrc = src
+        }
+
+        override fun acceptsAdmin(action: String, identity: String?): Boolean {
+            return localIdentity == null || localIdentity == identity
+        }
+
+        override fun admin(message: AdminMessage) {
+            action = message.action
+            identity = message.identity
+        }
+
+        private fun record(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {
+            id = annotation.id
+            category = annotation.category
+            x2 = annotation.x2
+            fontSize = annotation.fontSize
+            text = annotation.text
+            points = annotation.points.take(annotation.pointCount * 2)
+            this.roomWidth = roomWidth
+            this.roomHeight = roomHeight
+        }
+    }
+
+    companion object {
+        private const val WARM_UP_ROUNDS = 20
+        private const val MEASURED_ROUNDS = 50
+        // Generous: JsonReader's own 1024 char buffer is about 2 KB of it, the rest is
+        // the reader's stack and the strings handed to the handler
+        private const val MAX_BYTES_PER_MESSAGE = 8 * 1024L
+    }
+}
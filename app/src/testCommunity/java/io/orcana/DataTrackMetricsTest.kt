@@ -0,0 +1,59 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import java.io.PrintWriter
+import java.io.StringWriter
+import org.hamcrest.CoreMatchers.containsString
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+
+class DataTrackMetricsTest : BaseUnitTest() {
+
+    private val metrics = DataTrackMetrics()
+
+    @Test
+    fun `percentiles should report the upper bound of their bucket`() {
+        val histogram = DataTrackMetrics.Histogram()
+        repeat(90) { histogram.record(100_000) } // 100us, below 128us
+        repeat(10) { histogram.record(3_000_000) } // 3ms, below 4096us
+
+        assertThat(histogram.percentileMicros(0.5), equalTo(128L))
+        assertThat(histogram.percentileMicros(0.9), equalTo(128L))
+        assertThat(histogram.percentileMicros(0.99), equalTo(4096L))
+        assertThat(histogram.maxMicros, equalTo(3000L))
+    }
+
+    @Test
+    fun `percentiles should be zero without samples`() {
+        assertThat(DataTrackMetrics.Histogram().percentileMicros(0.5), equalTo(0L))
+    }
+
+    @Test
+    fun `dump should report every type`() {
+        metrics.received(DataTrackMessageParser.ADD_ANNOTATION, 120)
+        metrics.coalesced(DataTrackMessageParser.UPDATE_ANNOTATION)
+        metrics.parse(DataTrackMessageParser.ADD_ANNOTATION, 50_000)
+        metrics.dropped(null)
+        metrics.laneFull(null)
+
+        val report = StringWriter()
+        metrics.dump("  ", PrintWriter(report))
+
+        assertThat(report.toString(), containsString("  ADD_ANNOTATION: 1 msgs, 120 bytes"))
+        assertThat(report.toString(), containsString("  parse p50 64us"))
+        assertThat(report.toString(), containsString("UPDATE_ANNOTATION: 0 msgs, 0 bytes, 0/s, dropped 0, coalesced 1"))
+        assertThat(report.toString(), containsString("UNKNOWN: 0 msgs, 0 bytes, 0/s, dropped 1, coalesced 0, limited 0, full 1"))
+    }
+
+    @Test
+    fun `reset should forget everything recorded`() {
+        metrics.received(DataTrackMessageParser.ADMIN, 10)
+
+        metrics.reset()
+
+        val report = StringWriter()
+        metrics.dump("", PrintWriter(report))
+        assertThat(report.toString().contains("ADMIN"), equalTo(false))
+    }
+}
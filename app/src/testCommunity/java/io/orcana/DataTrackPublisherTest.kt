@@ -0,0 +1,79 @@
+package io.orcana
+
+import android.os.Handler
+import android.os.Looper
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class DataTrackPublisherTest : BaseUnitTest() {
+
+    private val publisher = DataTrackPublisher(Handler(Looper.getMainLooper()))
+
+    @Test
+    fun `encode should write the cursor and acknowledgements as one batch`() {
+        val batch = publisher.encode(false, true, 0.25f, 0.75f, listOf("kick", "mute"), emptyList())
+        batch.flip()
+        batch.order(ByteOrder.LITTLE_ENDIAN)
+
+        assertThat(batch.get(), equalTo(AnnotationCodec.MAGIC))
+        assertThat(batch.get(), equalTo(AnnotationCodec.VERSION))
+        assertThat(batch.get(), equalTo(DataTrackPublisher.OP_BATCH))
+        assertThat(AnnotationCodec.readVarInt(batch), equalTo(3))
+        assertThat(batch.get(), equalTo(DataTrackPublisher.RECORD_CURSOR))
+        assertThat(batch.float, equalTo(0.25f))
+        assertThat(batch.float, equalTo(0.75f))
+        for (action in listOf("kick", "mute")) {
+            assertThat(batch.get(), equalTo(DataTrackPublisher.RECORD_ACK))
+            val bytes = ByteArray(AnnotationCodec.readVarInt(batch))
+            batch.get(bytes)
+            assertThat(String(bytes, StandardCharsets.UTF_8), equalTo(action))
+        }
+        assertThat(batch.remaining(), equalTo(0))
+    }
+
+    @Test
+    fun `encode should announce the capabilities first`() {
+        val batch = publisher.encode(true, false, 0f, 0f, listOf("kick"), emptyList())
+        batch.flip()
+
+        assertThat(batch.get(3), equalTo(2.toByte()))
+        assertThat(batch.get(4), equalTo(DataTrackPublisher.RECORD_CAPABILITIES))
+        batch.position(5)
+        assertThat(AnnotationCodec.readVarInt(batch), equalTo(DataTrackCompression.CAPABILITY_DEFLATE))
+        assertThat(batch.get(), equalTo(DataTrackPublisher.RECORD_ACK))
+    }
+
+    @Test
+    fun `encode should report missing screenshots after the acknowledgements`() {
+        val batch = publisher.encode(false, false, 0f, 0f, listOf("kick"), listOf("xray-2"))
+        batch.flip()
+        batch.position(3)
+
+        assertThat(AnnotationCodec.readVarInt(batch), equalTo(2))
+        assertThat(batch.get(), equalTo(DataTrackPublisher.RECORD_ACK))
+        batch.position(batch.position() + 1 + "kick".length)
+        assertThat(batch.get(), equalTo(DataTrackPublisher.RECORD_SCREENSHOT_MISSING))
+        val bytes = ByteArray(AnnotationCodec.readVarInt(batch))
+        batch.get(bytes)
+        assertThat(String(bytes, StandardCharsets.UTF_8), equalTo("xray-2"))
+    }
+
+    @Test
+    fun `encode should grow the batch buffer for long acknowledgements`() {
+        val action = "a".repeat(1000)
+
+        val batch = publisher.encode(false, false, 0f, 0f, listOf(action), emptyList())
+
+        assertThat(batch.position(), equalTo(3 + 1 + 1 + 2 + action.length))
+    }
+}
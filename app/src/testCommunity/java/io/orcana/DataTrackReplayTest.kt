@@ -0,0 +1,118 @@
+package io.orcana
+
+import android.os.SystemClock
+import android.widget.ImageView
+import android.widget.TextView
+import androidx.test.core.app.ApplicationProvider
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLooper
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class DataTrackReplayTest : BaseUnitTest() {
+
+    private val context = ApplicationProvider.getApplicationContext<TestApp>()
+    private val annotationView = AnnotationView(context)
+    private val layer = DataTrackLayer(annotationView, ImageView(context), TextView(context)) { it.run() }
+
+    @After
+    fun tearDown() {
+        layer.onDestroy()
+    }
+
+    @Test
+    fun `a recorded annotation storm should replay into the view`() {
+        val recording = ByteArrayOutputStream()
+        DataTrackRecorder(recording).use { recorder ->
+            for (i in 1..500) {
+                recorder.record("console", "PA1", add(i))
+            }
+            for (i in 1..100) {
+                recorder.record("console", "PA1", remove(i))
+            }
+            recorder.record("console", "PA1", binaryRemove(101))
+        }
+
+        val result = DataTrackReplayer(ByteArrayInputStream(recording.toByteArray()))
+            .replay(layer.replayTarget, DataTrackReplayer.MAX_THROUGHPUT)
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks()
+
+        assertThat(result.messages, equalTo(601))
+        assertThat(annotationView.shapeCount, equalTo(399))
+        // Far below what the pipeline manages, only a stall or a sleep in the path trips it
+        val rate = result.messagesPerSecond()
+        assertThat("$rate messages/s", rate > MIN_MESSAGES_PER_SECOND, equalTo(true))
+    }
+
+    @Test
+    fun `replay should keep the recorded pace scaled by the speed`() {
+        val recording = ByteArrayOutputStream()
+        DataOutputStream(recording).use { output ->
+            output.writeInt(DataTrackRecorder.FILE_MAGIC)
+            writeText(output, 0, add(1))
+            writeText(output, 2_000_000, add(2))
+        }
+        val start = SystemClock.uptimeMillis()
+
+        DataTrackReplayer(ByteArrayInputStream(recording.toByteArray())).replay(layer.replayTarget, 2f)
+
+        assertThat(SystemClock.uptimeMillis() - start >= 1000, equalTo(true))
+    }
+
+    @Test
+    fun `a recording should stop at its size limit`() {
+        val recording = ByteArrayOutputStream()
+        DataTrackRecorder(recording, 200).use { recorder ->
+            for (i in 1..10) {
+                recorder.record("console", "PA1", remove(i))
+            }
+        }
+
+        val result = DataTrackReplayer(ByteArrayInputStream(recording.toByteArray()))
+            .replay(layer.replayTarget, DataTrackReplayer.MAX_THROUGHPUT)
+
+        assertThat(result.messages, equalTo(3))
+    }
+
+    private fun writeText(output: DataOutputStream, offsetMicros: Long, message: String) {
+        val payload = message.toByteArray(Charsets.UTF_8)
+        output.writeLong(offsetMicros)
+        output.writeUTF("console")
+        output.writeUTF("PA1")
+        output.writeByte(DataTrackRecorder.KIND_TEXT.toInt())
+        output.writeInt(payload.size)
+        output.write(payload)
+    }
+
+    private fun add(id: Int) = """{"type":"ADD_ANNOTATION","annotation":{"id":"$id","category":"circle",""" +
+        """"cx":${id % 1280},"cy":360,"r":10},"roomDimensions":{"width":1280,"height":720}}"""
+
+    private fun remove(id: Int) = """{"type":"REMOVE_ANNOTATION","annotation":{"id":"$id"}}"""
+
+    private fun binaryRemove(id: Int): ByteBuffer {
+        val frame = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+        frame.put(AnnotationCodec.MAGIC)
+        frame.put(AnnotationCodec.VERSION)
+        frame.put(3)
+        AnnotationCodec.writeVarInt(frame, id)
+        frame.flip()
+        return frame
+    }
+
+    companion object {
+        private const val MIN_MESSAGES_PER_SECOND = 100.0
+    }
+}
@@ -0,0 +1,303 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.ArrayDeque
+import java.util.concurrent.Executor
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class DataTrackSenderTest : BaseUnitTest() {
+
+    private val executor = QueueExecutor()
+    private val handler = RecordingHandler()
+    private val metrics = DataTrackMetrics()
+    private val sender = DataTrackSender("headset", "PA1", executor, handler, metrics)
+
+    @Test
+    fun `messages should be processed in arrival order`() {
+        sender.post(remove("1"))
+        sender.post(ByteBuffer.wrap(remove("2").toByteArray(StandardCharsets.UTF_8)))
+        sender.post(remove("3"))
+
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(listOf("remove:1", "remove:2", "remove:3")))
+        assertThat(sender.receivedMessages, equalTo(3L))
+    }
+
+    @Test
+    fun `clear should drop the backlog of only this sender`() {
+        val other = DataTrackSender("console", "PA2", executor, handler, metrics)
+        sender.post(remove("1"))
+        other.post(remove("2"))
+
+        assertThat(sender.clear(), equalTo(1))
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(listOf("remove:2")))
+        assertThat(sender.droppedMessages, equalTo(1L))
+    }
+
+    @Test
+    fun `control messages should be processed before queued annotations and screenshots`() {
+        sender.post(remove("1"))
+        sender.post("""{"type":"UPDATE_SCREENSHOT","screenshot":{"src":null}}""")
+        sender.post(remove("2"))
+        sender.post("""{"type":"ADMIN","action":"kick","identity":"headset"}""")
+
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(listOf("admin:kick", "remove:1", "remove:2", "screenshot")))
+    }
+
+    @Test
+    fun `messages should be counted per type`() {
+        sender.post(remove("1"))
+        sender.post(ByteBuffer.wrap(byteArrayOf(AnnotationCodec.MAGIC, AnnotationCodec.VERSION, 3, 1)))
+        sender.post(remove("2"))
+        sender.clear()
+
+        executor.runAll()
+
+        val removes = metrics.get(DataTrackMessageParser.REMOVE_ANNOTATION)
+        assertThat(removes.messages.get(), equalTo(2L))
+        assertThat(removes.bytes.get(), equalTo(2L * remove("1").length))
+        assertThat(removes.dropped.get(), equalTo(2L))
+        assertThat(metrics.get(DataTrackMetrics.BINARY).bytes.get(), equalTo(4L))
+    }
+
+    @Test
+    fun `a newer screenshot should replace the queued one without dropping chunks`() {
+        for (seq in 0 until 20) {
+            sender.post("""{"type":"SCREENSHOT_CHUNK","screenshot":{"id":"a","seq":$seq,"total":20,"data":"QUJD"}}""")
+        }
+        sender.post("""{"type":"SHOW_SCREENSHOT","screenshot":{"id":"a"}}""")
+        sender.post("""{"type":"SHOW_SCREENSHOT","screenshot":{"id":"b"}}""")
+
+        executor.runAll()
+
+        assertThat(handler.events.count { it.startsWith("chunk:") }, equalTo(20))
+        assertThat(handler.events.last(), equalTo("show:b"))
+        assertThat(sender.droppedMessages, equalTo(0L))
+        assertThat(metrics.get(DataTrackMessageParser.SHOW_SCREENSHOT).coalesced.get(), equalTo(1L))
+    }
+
+    @Test
+    fun `processed messages should record wait and parse times`() {
+        sender.post(remove("1"))
+
+        executor.runAll()
+
+        val removes = metrics.get(DataTrackMessageParser.REMOVE_ANNOTATION)
+        assertThat(removes.queueWait.count, equalTo(1L))
+        assertThat(removes.parse.count, equalTo(1L))
+    }
+
+    @Test
+    fun `compressed messages should be queued by their lane flag and inflated when processed`() {
+        sender.post(compress(remove("1")))
+        sender.post(compress("""{"type":"ADMIN","action":"kick","identity":"headset"}"""))
+        sender.post(DataTrackCompression.compress(
+            byteArrayOf(AnnotationCodec.MAGIC, AnnotationCodec.VERSION, 3, 2), false))
+
+        val removes = metrics.get(DataTrackMessageParser.REMOVE_ANNOTATION)
+        assertThat(removes.compressed.get(), equalTo(0L))
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(listOf("admin:kick", "remove:1", "remove:2")))
+        assertThat(removes.compressed.get(), equalTo(1L))
+        assertThat(removes.inflatedBytes.get(), equalTo(remove("1").length.toLong()))
+        val compressed = metrics.get(DataTrackMetrics.COMPRESSED)
+        assertThat(compressed.messages.get(), equalTo(2L))
+        val inflated = removes.inflatedBytes.get() + metrics.get(DataTrackMessageParser.ADMIN).inflatedBytes.get()
+        assertThat(compressed.bytes.get() < inflated, equalTo(true))
+    }
+
+    @Test
+    fun `compressed JSON without a lane flag should be queued as bulk`() {
+        val envelope = compress(remove("1"))
+        envelope.put(2, DataTrackCompression.FLAG_TEXT)
+        sender.post(envelope)
+        sender.post(remove("2"))
+
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(listOf("remove:2", "remove:1")))
+    }
+
+    @Test
+    fun `corrupt compressed messages should be dropped`() {
+        val envelope = compress(remove("1"))
+        envelope.put(envelope.limit() - 1, 0.toByte())
+
+        sender.post(envelope)
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(emptyList<String>()))
+        assertThat(metrics.get(DataTrackMetrics.COMPRESSED).dropped.get(), equalTo(1L))
+        assertThat(sender.droppedMessages, equalTo(1L))
+    }
+
+    @Test
+    fun `messages over their lane limit should be dropped`() {
+        val limited = DataTrackSender("console", "PA2", executor, handler, metrics, limits(100, 1, 2, 1))
+        limited.post(remove("1"))
+        limited.post(remove("2"))
+        limited.post(remove("3"))
+
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(listOf("remove:1", "remove:2")))
+        assertThat(limited.rateLimitedMessages, equalTo(1L))
+        assertThat(limited.droppedMessages, equalTo(1L))
+        val removes = metrics.get(DataTrackMessageParser.REMOVE_ANNOTATION)
+        assertThat(removes.rateLimited.get(), equalTo(1L))
+        assertThat(removes.dropped.get(), equalTo(1L))
+    }
+
+    @Test
+    fun `screenshots over the limit should replace the queued one`() {
+        val limited = DataTrackSender("console", "PA2", executor, handler, metrics, limits(100, 1, 1, 1))
+        limited.post("""{"type":"SHOW_SCREENSHOT","screenshot":{"id":"a"}}""")
+        limited.post("""{"type":"SHOW_SCREENSHOT","screenshot":{"id":"b"}}""")
+
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(listOf("show:b")))
+        assertThat(limited.rateLimitedMessages, equalTo(1L))
+        assertThat(metrics.get(DataTrackMessageParser.SHOW_SCREENSHOT).coalesced.get(), equalTo(1L))
+    }
+
+    @Test
+    fun `the latest screenshot should be queued even over the limit`() {
+        val limited = DataTrackSender("console", "PA2", executor, handler, metrics, limits(100, 1, 1, 1))
+        limited.post("""{"type":"SHOW_SCREENSHOT","screenshot":{"id":"a"}}""")
+        executor.runAll()
+        limited.post("""{"type":"SHOW_SCREENSHOT","screenshot":{"id":"b"}}""")
+
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(listOf("show:a", "show:b")))
+        assertThat(limited.rateLimitedMessages, equalTo(1L))
+        assertThat(limited.droppedMessages, equalTo(0L))
+    }
+
+    @Test
+    fun `the sender limit should apply to every lane but control`() {
+        val limited = DataTrackSender("console", "PA2", executor, handler, metrics, limits(2, 16, 16, 16))
+        limited.post(remove("1"))
+        limited.post(remove("2"))
+        limited.post(ByteBuffer.wrap(byteArrayOf(AnnotationCodec.MAGIC, AnnotationCodec.VERSION, 3, 3)))
+        limited.post("""{"type":"ADMIN","action":"kick","identity":"headset"}""")
+
+        executor.runAll()
+
+        assertThat(handler.events, equalTo(listOf("admin:kick", "remove:1", "remove:2")))
+        assertThat(limited.receivedMessages, equalTo(4L))
+        assertThat(metrics.get(DataTrackMetrics.BINARY).rateLimited.get(), equalTo(1L))
+    }
+
+    @Test
+    fun `a full lane should drop new messages and count them`() {
+        val unlimited = DataTrackSender("console", "PA2", executor, handler, metrics,
+            DataTrackSender.RateLimits.UNLIMITED)
+        val capacity = DataTrackSender.LANE_CAPACITY[DataTrackSender.LANE_ANNOTATION]
+        for (i in 1..capacity + 3) {
+            unlimited.post(remove("$i"))
+        }
+
+        executor.runAll()
+        unlimited.post(remove("last"))
+        executor.runAll()
+
+        assertThat(handler.events.size, equalTo(capacity + 1))
+        assertThat(handler.events.last(), equalTo("remove:last"))
+        assertThat(unlimited.droppedMessages, equalTo(3L))
+        val removes = metrics.get(DataTrackMessageParser.REMOVE_ANNOTATION)
+        assertThat(removes.laneFull.get(), equalTo(3L))
+        assertThat(removes.dropped.get(), equalTo(3L))
+    }
+
+    @Test
+    fun `messages should be classified by type`() {
+        assertThat(DataTrackSender.lane(DataTrackMessageParser.peekType("""{"type":"ADMIN"}""")),
+            equalTo(DataTrackSender.LANE_CONTROL))
+        assertThat(DataTrackSender.lane(DataTrackMessageParser.peekType("""{"type" : "SCREENSHOT_CHUNK"}""")),
+            equalTo(DataTrackSender.LANE_BULK))
+        assertThat(DataTrackSender.lane(DataTrackMessageParser.peekType("{}")),
+            equalTo(DataTrackSender.LANE_ANNOTATION))
+    }
+
+    private fun remove(id: String) = """{"type":"REMOVE_ANNOTATION","annotation":{"id":"$id"}}"""
+
+    // Buckets that never refill, so the tests do not depend on timing
+    private fun limits(sender: Int, control: Int, annotation: Int, bulk: Int) =
+        DataTrackSender.RateLimits(sender, 0.0, intArrayOf(control, annotation, bulk), doubleArrayOf(0.0, 0.0, 0.0))
+
+    private fun compress(message: String) =
+        DataTrackCompression.compress(message.toByteArray(StandardCharsets.UTF_8), true)
+
+    private class QueueExecutor : Executor {
+        private val tasks = ArrayDeque<Runnable>()
+
+        override fun execute(command: Runnable) {
+            tasks.add(command)
+        }
+
+        fun runAll() {
+            while (tasks.isNotEmpty()) {
+                tasks.poll()!!.run()
+            }
+        }
+    }
+
+    private class RecordingHandler : DataTrackMessageHandler {
+        val events = mutableListOf<String>()
+
+        override fun addAnnotation(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {}
+
+        override fun updateAnnotation(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {}
+
+        override fun appendPoints(annotation: AnnotationRecord, roomWidth: Float, roomHeight: Float) {}
+
+        override fun removeAnnotation(id: String, seq: Long) {
+            events.add("remove:$id")
+        }
+
+        override fun restartAnnotation() {}
+
+        override fun annotationSnapshot(
+            version: Long,
+            annotations: List<AnnotationRecord>,
+            roomWidth: Float,
+            roomHeight: Float
+        ) {}
+
+        override fun updateScreenshot(id: String?, src: String?) {
+            events.add("screenshot")
+        }
+
+        override fun showScreenshot(id: String) {
+            events.add("show:$id")
+        }
+
+        override fun screenshotChunk(id: String, seq: Int, total: Int, data: String, preview: String?) {
+            events.add("chunk:$seq")
+        }
+
+        override fun screenshotTile(frameWidth: Int, frameHeight: Int, tileSize: Int, tile: Int, src: String) {}
+
+        override fun admin(message: AdminMessage) {
+            events.add("admin:${message.action}")
+        }
+    }
+}
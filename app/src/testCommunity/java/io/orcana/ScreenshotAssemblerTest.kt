@@ -0,0 +1,71 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.CoreMatchers.nullValue
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+
+class ScreenshotAssemblerTest : BaseUnitTest() {
+
+    private val listener = RecordingListener()
+    private val assembler = ScreenshotAssembler(listener)
+
+    @Test
+    fun `chunks should be reassembled in order regardless of arrival`() {
+        assembler.addChunk("1", 2, 3, "c", null, 0)
+        assembler.addChunk("1", 0, 3, "a", null, 10)
+        assembler.addChunk("1", 1, 3, "b", null, 20)
+
+        assertThat(listener.parts?.joinToString(""), equalTo("abc"))
+        assertThat(assembler.pendingCount(), equalTo(0))
+    }
+
+    @Test
+    fun `preview should be shown until the screenshot completes`() {
+        assembler.addChunk("1", 0, 2, "a", "preview", 0)
+
+        assertThat(listener.preview, equalTo("preview"))
+        assertThat(listener.parts, nullValue())
+    }
+
+    @Test
+    fun `stale chunks should time out`() {
+        assembler.addChunk("1", 0, 2, "a", null, 0)
+        assembler.addChunk("1", 1, 2, "b", null, ScreenshotAssembler.TIMEOUT_MILLIS + 1)
+
+        assertThat(listener.parts, nullValue())
+        assertThat(assembler.pendingCount(), equalTo(1))
+    }
+
+    @Test
+    fun `completing a screenshot should discard older ones`() {
+        assembler.addChunk("1", 0, 2, "a", null, 0)
+        assembler.addChunk("2", 0, 1, "b", null, 10)
+
+        assertThat(listener.parts?.joinToString(""), equalTo("b"))
+        assertThat(assembler.pendingCount(), equalTo(0))
+    }
+
+    @Test
+    fun `buffer should be bounded`() {
+        for (i in 0..ScreenshotAssembler.MAX_PENDING) {
+            assembler.addChunk("$i", 0, 2, "a", null, 0)
+        }
+
+        assertThat(assembler.pendingCount(), equalTo(ScreenshotAssembler.MAX_PENDING))
+    }
+
+    private class RecordingListener : ScreenshotAssembler.Listener {
+        var preview: String? = null
+        var parts: Array<String>? = null
+
+        override fun onPreview(src: String) {
+            preview = src
+        }
+
+        override fun onScreenshot(parts: Array<String>) {
+            this.parts = parts
+        }
+    }
+}
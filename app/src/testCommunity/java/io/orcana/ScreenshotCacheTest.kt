@@ -0,0 +1,68 @@
+package io.orcana
+
+import android.graphics.Bitmap
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.CoreMatchers.not
+import org.hamcrest.CoreMatchers.nullValue
+import org.hamcrest.CoreMatchers.sameInstance
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class)
+class ScreenshotCacheTest : BaseUnitTest() {
+
+    // Room for two 100x100 ARGB_8888 screenshots
+    private val cache = ScreenshotCache(2 * 100 * 100 * 4)
+
+    @Test
+    fun `least recently used screenshots should be evicted over the budget`() {
+        val first = bitmap()
+        cache.put("a", first, 1920, 1080)
+        cache.put("b", bitmap(), 1920, 1080)
+        assertThat(cache.get("a")!!.bitmap, sameInstance(first))
+
+        cache.put("c", bitmap(), 1920, 1080)
+
+        assertThat(cache.get("a")!!.frameWidth, equalTo(1920))
+        assertThat(cache.get("b"), nullValue())
+        assertThat(cache.size(), equalTo(2 * 100 * 100 * 4))
+    }
+
+    @Test
+    fun `content keys should only depend on the payload`() {
+        val whole = ScreenshotCache.contentKey(arrayOf("data:image/jpeg;base64,QUJDREVG"), 23)
+        val split = ScreenshotCache.contentKey(arrayOf("QUJD", "REVG"), 0)
+        val other = ScreenshotCache.contentKey(arrayOf("QUJDREVH"), 0)
+
+        assertThat(split, equalTo(whole))
+        assertThat(other, not(equalTo(whole)))
+    }
+
+    @Test
+    fun `an id should name the content it was last sent with`() {
+        val old = bitmap()
+        val new = bitmap()
+        cache.put("sha:old", old, 1920, 1080)
+        cache.name("id:PA1:xray", "sha:old")
+        assertThat(cache.get("id:PA1:xray")!!.bitmap, sameInstance(old))
+
+        cache.name("id:PA1:xray", "sha:new")
+        assertThat(cache.get("id:PA1:xray"), nullValue())
+
+        cache.put("sha:new", new, 1920, 1080)
+        assertThat(cache.get("id:PA1:xray")!!.bitmap, sameInstance(new))
+    }
+
+    @Test
+    fun `id keys should be scoped to their sender`() {
+        assertThat(ScreenshotCache.idKey("PA1", "xray"), not(equalTo(ScreenshotCache.idKey("PA2", "xray"))))
+    }
+
+    private fun bitmap() = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888)
+}
@@ -0,0 +1,163 @@
+package io.orcana
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Rect
+import android.graphics.drawable.BitmapDrawable
+import android.os.Handler
+import android.os.Looper
+import android.util.Base64
+import android.widget.ImageView
+import androidx.test.core.app.ApplicationProvider
+import com.twilio.video.app.BaseUnitTest
+import com.twilio.video.app.TestApp
+import java.io.IOException
+import java.io.InputStream
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.CoreMatchers.not
+import org.hamcrest.CoreMatchers.sameInstance
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.robolectric.annotation.Implementation
+import org.robolectric.annotation.Implements
+import org.robolectric.shadows.ShadowLooper
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = TestApp::class, shadows = [ScreenshotDecoderTest.ShadowStreamingBitmapFactory::class])
+class ScreenshotDecoderTest : BaseUnitTest() {
+
+    // Unattached views never run what is posted to them, run it on the main looper instead
+    private val screenshotView = object : ImageView(ApplicationProvider.getApplicationContext<TestApp>()) {
+        override fun post(action: Runnable) = Handler(Looper.getMainLooper()).post(action)
+    }
+    private val pool = BitmapPool(1024 * 1024)
+    private val decoder = ScreenshotDecoder(screenshotView, null, pool)
+
+    @After
+    fun tearDown() {
+        decoder.release()
+        ShadowStreamingBitmapFactory.reset()
+    }
+
+    @Test
+    fun `sample size should keep the image at least as large as the view`() {
+        assertThat(ScreenshotDecoder.calculateSampleSize(4000, 3000, 1280, 720), equalTo(2))
+        assertThat(ScreenshotDecoder.calculateSampleSize(4000, 3000, 640, 360), equalTo(4))
+        assertThat(ScreenshotDecoder.calculateSampleSize(1280, 720, 1280, 720), equalTo(1))
+    }
+
+    @Test
+    fun `sample size should be one before the view is laid out`() {
+        assertThat(ScreenshotDecoder.calculateSampleSize(4000, 3000, 0, 0), equalTo(1))
+    }
+
+    @Test
+    fun `a newer screenshot should cancel an older one and reuse its pooled bitmap`() {
+        val pooled = pooledBitmap()
+        val newer = payload(2)
+        ShadowStreamingBitmapFactory.onDecode = {
+            ShadowStreamingBitmapFactory.onDecode = null
+            decoder.decode(src(newer))
+        }
+
+        decoder.decode(src(payload(1)))
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks()
+
+        assertThat(ShadowStreamingBitmapFactory.decoded!!.toList(), equalTo(newer.toList()))
+        assertThat(displayed(), sameInstance(pooled))
+        assertThat(pool.pooledBytes, equalTo(0L))
+    }
+
+    @Test
+    fun `screenshot parts should be read back to back as one stream`() {
+        val image = payload(3)
+        val src = src(image)
+
+        decoder.decode(arrayOf(src.substring(0, 30), src.substring(30, 217), src.substring(217)))
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks()
+
+        assertThat(ShadowStreamingBitmapFactory.decoded!!.toList(), equalTo(image.toList()))
+        assertThat(displayed().width, equalTo(SIZE))
+    }
+
+    @Test
+    fun `a pooled bitmap that cannot be decoded into should go back to the pool`() {
+        val pooled = pooledBitmap()
+        ShadowStreamingBitmapFactory.rejectInBitmap = true
+
+        decoder.decode(src(payload(4)))
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks()
+
+        assertThat(displayed(), not(sameInstance(pooled)))
+        assertThat(pool.take(BYTES), sameInstance(pooled))
+    }
+
+    private fun pooledBitmap(): Bitmap {
+        val bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888)
+        pool.release(bitmap)
+        return bitmap
+    }
+
+    private fun displayed() = (screenshotView.drawable as BitmapDrawable).bitmap
+
+    // Stands in for a JPEG, the fake BitmapFactory only reads it back
+    private fun payload(seed: Int) = ByteArray(300) { (it * seed).toByte() }
+
+    private fun src(payload: ByteArray) = "data:image/jpeg;base64," + Base64.encodeToString(payload, Base64.DEFAULT)
+
+    /*
+     * Reads the whole stream like the real decoder, failing on read errors and on an inBitmap it
+     * cannot decode into the way BitmapFactory does. Every image is SIZE x SIZE.
+     */
+    @Implements(BitmapFactory::class)
+    class ShadowStreamingBitmapFactory {
+        companion object {
+            var decoded: ByteArray? = null
+            var rejectInBitmap = false
+            // Runs as a full decode starts reading
+            var onDecode: (() -> Unit)? = null
+
+            fun reset() {
+                decoded = null
+                rejectInBitmap = false
+                onDecode = null
+            }
+
+            @JvmStatic
+            @Implementation
+            fun decodeStream(stream: InputStream, outPadding: Rect?, options: BitmapFactory.Options): Bitmap? {
+                if (!options.inJustDecodeBounds) {
+                    onDecode?.invoke()
+                }
+                val bytes = try {
+                    stream.readBytes()
+                } catch (e: IOException) {
+                    null
+                }
+                if (bytes == null || options.inBitmap != null && rejectInBitmap) {
+                    if (options.inBitmap != null) {
+                        throw IllegalArgumentException("Problem decoding into existing bitmap")
+                    }
+                    return null
+                }
+
+                decoded = bytes
+                options.outWidth = SIZE
+                options.outHeight = SIZE
+                if (options.inJustDecodeBounds) {
+                    return null
+                }
+                return options.inBitmap ?: Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888)
+            }
+        }
+    }
+
+    companion object {
+        private const val SIZE = 64
+        private const val BYTES = SIZE * SIZE * 4
+    }
+}
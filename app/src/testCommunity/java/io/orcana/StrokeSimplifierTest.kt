@@ -0,0 +1,48 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+
+class StrokeSimplifierTest : BaseUnitTest() {
+
+    @Test
+    fun `collinear points should collapse to the end points`() {
+        val points = floatArrayOf(0f, 0f, 1f, 1f, 2f, 2f, 3f, 3f)
+        val out = FloatArray(points.size)
+
+        val kept = StrokeSimplifier.simplify(points, 4, 0.1f, 1f, out)
+
+        assertThat(kept, equalTo(2))
+        assertThat(out.take(4), equalTo(listOf(0f, 0f, 3f, 3f)))
+    }
+
+    @Test
+    fun `corners further than epsilon should be kept`() {
+        val points = floatArrayOf(0f, 0f, 5f, 0.05f, 10f, 0f, 10f, 10f)
+
+        val kept = StrokeSimplifier.simplify(points, 4, 0.1f, 1f, points)
+
+        assertThat(kept, equalTo(3))
+        assertThat(points.take(6), equalTo(listOf(0f, 0f, 10f, 0f, 10f, 10f)))
+    }
+
+    @Test
+    fun `distances should be measured with scaled y coordinates`() {
+        val points = floatArrayOf(0f, 0f, 5f, 0.05f, 10f, 0f)
+        val out = FloatArray(points.size)
+
+        assertThat(StrokeSimplifier.simplify(points, 3, 0.1f, 4f, out), equalTo(3))
+    }
+
+    @Test
+    fun `long strokes should not overflow the stack`() {
+        val count = 10_000
+        val points = FloatArray(count * 2) { i -> if (i % 2 == 0) i.toFloat() else ((i / 2) % 2).toFloat() }
+
+        val kept = StrokeSimplifier.simplify(points, count, 0.1f, 1f, points)
+
+        assertThat(kept, equalTo(count))
+    }
+}
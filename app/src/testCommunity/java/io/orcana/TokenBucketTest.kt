@@ -0,0 +1,32 @@
+package io.orcana
+
+import com.twilio.video.app.BaseUnitTest
+import org.hamcrest.CoreMatchers.equalTo
+import org.hamcrest.MatcherAssert.assertThat
+import org.junit.Test
+
+class TokenBucketTest : BaseUnitTest() {
+
+    @Test
+    fun `a full bucket should allow a burst and then the refill rate`() {
+        val bucket = TokenBucket(2, 10.0)
+        val start = System.nanoTime()
+
+        assertThat(bucket.tryTake(start), equalTo(true))
+        assertThat(bucket.tryTake(start), equalTo(true))
+        assertThat(bucket.tryTake(start), equalTo(false))
+
+        assertThat(bucket.tryTake(start + 100_000_000L), equalTo(true))
+        assertThat(bucket.tryTake(start + 100_000_000L), equalTo(false))
+    }
+
+    @Test
+    fun `tokens should not accumulate past the burst`() {
+        val bucket = TokenBucket(2, 10.0)
+        val later = System.nanoTime() + 10_000_000_000L
+
+        assertThat(bucket.tryTake(later), equalTo(true))
+        assertThat(bucket.tryTake(later), equalTo(true))
+        assertThat(bucket.tryTake(later), equalTo(false))
+    }
+}